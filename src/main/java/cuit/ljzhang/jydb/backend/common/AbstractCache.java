@@ -1,9 +1,19 @@
 package cuit.ljzhang.jydb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import cuit.ljzhang.jydb.backend.common.primitive.LongIntHashMap;
+import cuit.ljzhang.jydb.backend.common.primitive.LongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static cuit.ljzhang.jydb.common.Error.CacheFullException;
 
@@ -14,99 +24,81 @@ import static cuit.ljzhang.jydb.common.Error.CacheFullException;
  * @Date 2023/7/24 23:04
  * @Version 1.0
  * 引用缓存框架
+ *      --- maxResource == 0：没有容量限制，引用数减为0时立即回源并移出缓存
+ *      --- maxResource > 0：引用数减为0的资源继续留在缓存中
+ *          ---缓存满时由淘汰策略选出一个没有被引用的资源，回源之后移出缓存
+ *          ---所有资源都被引用时才会抛出CacheFullException
+ * 分段锁：
+ *      --- 缓存按key的hash拆成多个Segment，每个Segment有自己的锁、hash表和淘汰策略
+ *      --- 不同Segment上的get/release互不阻塞
+ *      --- 容量按Segment平均分配，淘汰只在Segment内部进行
+ *      --- concurrency == 1 时就是原来的全局锁实现
  */
 public abstract class AbstractCache<T> {
 
-    //实际缓存的数据
-    private HashMap<Long, T> cache;
-    //资源引用个数
-    private HashMap<Long, Integer> references;
-    //正在被获取的资源
-    private HashMap<Long, Boolean> getting;
-
-    //缓存的最大缓存资源数
-    private int maxResource;
+    /*有容量限制时  每个Segment至少能容纳的资源数*/
+    private static final int MIN_SEGMENT_RESOURCE = 8;
 
-    //缓存中的元素个数
-    private int count;
+    private Segment[] segments;
 
-    //锁
-    private Lock lock = null;
+    /*segments.length = 2^segmentBits*/
+    private int segmentBits;
 
     /*构造函数  初始化缓存hash
     * maxResource : 0表示没有限制
     * */
     public AbstractCache(int maxResource) {
-        this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this(maxResource, 1, EvictionPolicy::lru);
+    }
+
+    /*
+    * concurrency：期望的并发度，会被调整为2的幂，并保证每个Segment的容量不会太小
+    * policyFactory：每个Segment各自持有一个淘汰策略
+    * */
+    public AbstractCache(int maxResource, int concurrency, Supplier<EvictionPolicy> policyFactory) {
+        int n = 1;
+        while((n << 1) <= concurrency
+                && (maxResource <= 0 || maxResource / (n << 1) >= MIN_SEGMENT_RESOURCE)) {
+            n <<= 1;
+        }
+        segmentBits = Integer.numberOfTrailingZeros(n);
+        /*不能直接创建泛型类内部类的数组*/
+        @SuppressWarnings("unchecked")
+        Segment[] s = (Segment[]) new AbstractCache<?>.Segment[n];
+        segments = s;
+        for(int i = 0; i < n; i++) {
+            /*容量按Segment平均分配，余数分给前面的Segment*/
+            int capacity = maxResource <= 0 ? 0 : maxResource / n + (i < maxResource % n ? 1 : 0);
+            segments[i] = new Segment(capacity, capacity > 0 ? policyFactory.get() : null);
+        }
+    }
+
+    /*默认并发度：CPU核数的两倍*/
+    protected static int defaultConcurrency() {
+        return Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    /*
+    * 根据key选择Segment
+    * 页号和uid通常是连续的，先乘一个黄金分割常数打散再取高位
+    * */
+    private Segment segmentFor(long key) {
+        if(segmentBits == 0) {
+            return segments[0];
+        }
+        return segments[(int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - segmentBits))];
     }
 
     /*
     * 尝试获取资源
     * 操作储存时 -- 需要保证线程安全的
-    * 循环无限尝试获取资源
+    * 单飞加载(single-flight)：
+    *   --- 第一个未命中的线程负责调用getFoCache从数据源加载
+    *   --- 其他线程等待同一个future，加载完成后立即被唤醒，不需要轮询
+    *   --- 加载失败时，所有等待的线程都会拿到同一个异常
     * */
     protected T get(long key) throws Exception {
-        while(true){
-            lock.lock();
-            /*如果getting中存在key --- 表示其他资源正在从文件中尝试获取数据*/
-            if(getting.containsKey(key)){
-                /*解锁 -- 并休眠线程10毫秒 然后循环重新尝试*/
-                lock.unlock();
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                continue;
-            }
-            /*缓存中存在key --- 直接获取数据*/
-            if(cache.containsKey(key)){
-                T obj = cache.get(key);
-                /*此处修改也是线程不安全的 --- 加锁的必要性*/
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
-            }
-            /*
-            *尝试获取资源 --- 缓存已满就抛出异常
-            * InnoDB中的LRU则时会淘汰LRU的末端节点
-            *   --- yang区 and old区
-            *   --- 在old区存活超过一秒 被读取进入yang区
-            *   --- yang区前1/4不会重新移动到头节点
-            * */
-            if(maxResource > 0 && count == maxResource){
-                lock.unlock();
-                throw CacheFullException;
-            }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
-        }
-        T obj = null;
-        /*资源不在缓存中的获取情况*/
-        try {
-            obj = getFoCache(key);
-        } catch (Exception e) {
-            lock.lock();
-            /*操作共享变量 --- 线程不安全的*/
-            count--;
-            getting.remove(key);
-            lock.unlock();
-            throw e;
-        }
-        /*成功在文件中获取到资源后*/
-        lock.lock();
-        cache.put(key, obj);
-        getting.remove(key);
-        references.put(key, 1);
-        lock.unlock();
-        return obj;
+        return segmentFor(key).get(key);
     }
 
     /*
@@ -114,49 +106,59 @@ public abstract class AbstractCache<T> {
     * 计数--， 如果没有引用 就回源
     * */
     protected void release(long key){
-        lock.lock();
-        try {
-            int ref = references.get(key) - 1;
-            /*
-            * 引用数减为0
-            * 移除缓存和资源计数
-            * 回源
-            * */
-            if(ref == 0){
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            }else {
-                references.put(key, ref);
-            }
-        } finally {
-            lock.unlock();
+        segmentFor(key).release(key);
+    }
+
+    /*
+    * 对缓存中满足filter的资源各加一次引用并返回
+    *   --- 只遍历已经在缓存中的资源，不会触发加载，也不会影响淘汰顺序
+    *   --- 返回的资源在release之前不会被淘汰，使用完之后需要逐个release
+    *   --- 有容量限制时每个Segment最多固定一半的资源，另一半留给get淘汰
+    *       ---满足条件的资源更多时需要分批调用
+    * */
+    protected List<T> pinResident(Predicate<? super T> filter) {
+        List<T> res = new ArrayList<>();
+        for(Segment segment : segments) {
+            segment.pinResident(filter, res);
+        }
+        return res;
+    }
+
+    /*资源是否已经在缓存中或者正在被加载  不会触发加载*/
+    protected boolean contains(long key) {
+        return segmentFor(key).contains(key);
+    }
+
+    /*
+    * 把预读得到的资源直接放进缓存  引用数为0，调用者不需要release
+    *   --- 只有有容量限制的缓存可以预读，否则引用数为0的资源没有机会被移出
+    *   --- 缓存满时淘汰一个没有被引用的资源，与get的淘汰规则相同
+    *   --- current在分段锁内调用，判断obj读出之后数据源有没有被修改过
+    *   --- 资源已经在缓存中、正在被加载、已经过期、或者没有可以淘汰的资源时返回false，obj由调用者处理
+    * */
+    protected boolean preload(long key, T obj, BooleanSupplier current) {
+        return segmentFor(key).preload(key, obj, current);
+    }
+
+    /*
+    * 把key满足filter的资源移出缓存  不回源
+    *   --- 用于数据源中对应的部分已经失效的情况，例如文件截断之后的页面
+    *   --- 仍然被引用的资源不会被移出，调用者需要保证这些资源已经没有人使用
+    *   --- 移出的资源交给discarded处理
+    * */
+    protected void discard(LongPredicate filter, Consumer<? super T> discarded) {
+        for(Segment segment : segments) {
+            segment.discard(filter, discarded);
         }
     }
 
     /*
     * 关闭资源
-    * 将缓存内的资源强制回源
+    * 将缓存内的资源强制回源 --- 不论引用数是多少
     * */
-    //Todo:bug校验 --- 这里的逻辑不大对
     protected void close(){
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for(Long key : keys){
-                /*
-                * 这里的逻辑是移除缓存并且回源
-                * 释放缓存的话这里的计数是--
-                * 如果没有减到0呢
-                * */
-                release(key);
-                cache.remove(key);
-                references.remove(key);
-            }
-        } finally {
-            lock.unlock();
+        for(Segment segment : segments) {
+            segment.close();
         }
     }
 
@@ -170,4 +172,251 @@ public abstract class AbstractCache<T> {
     * */
     protected abstract void releaseForCache(T page);
 
+    /*
+    * 缓存的一个分段
+    * 一把锁保护三张hash表，逻辑与原来的全局缓存一致
+    * hash表的key不装箱，命中路径上不分配对象
+    * */
+    private class Segment {
+
+        //实际缓存的数据
+        private LongObjectHashMap<T> cache;
+        //资源引用个数
+        private LongIntHashMap references;
+        //正在被获取的资源 --- 等待加载的线程阻塞在对应的future上
+        private LongObjectHashMap<CompletableFuture<T>> getting;
+
+        //该分段的最大缓存资源数  0表示没有限制
+        private int maxResource;
+
+        //分段中的元素个数
+        private int count;
+
+        //淘汰策略 --- 只在有容量限制时使用
+        private EvictionPolicy policy;
+
+        //锁
+        private Lock lock;
+
+        Segment(int maxResource, EvictionPolicy policy) {
+            this.maxResource = maxResource;
+            this.policy = policy;
+            cache = new LongObjectHashMap<>();
+            references = new LongIntHashMap();
+            getting = new LongObjectHashMap<>();
+            lock = new ReentrantLock();
+        }
+
+        T get(long key) throws Exception {
+            CompletableFuture<T> loading;
+            while(true){
+                lock.lock();
+                /*如果getting中存在key --- 表示其他线程正在从文件中获取数据*/
+                loading = getting.get(key);
+                if(loading != null){
+                    /*解锁 -- 等待加载结束 然后循环重新尝试(重新计数引用)*/
+                    lock.unlock();
+                    awaitLoading(loading);
+                    continue;
+                }
+                /*缓存中存在key --- 直接获取数据*/
+                T cached = cache.get(key);
+                if(cached != null){
+                    /*此处修改也是线程不安全的 --- 加锁的必要性*/
+                    references.put(key, references.get(key, 0) + 1);
+                    if(isBounded()) {
+                        policy.onAccess(key);
+                    }
+                    lock.unlock();
+                    return cached;
+                }
+                /*
+                * 缓存已满 --- 淘汰一个没有被引用的资源
+                * 所有资源都被引用时才抛出异常
+                * */
+                if(isBounded() && count == maxResource){
+                    try {
+                        evict();
+                    } catch (Exception e) {
+                        lock.unlock();
+                        throw e;
+                    }
+                }
+                count++;
+                loading = new CompletableFuture<>();
+                getting.put(key, loading);
+                lock.unlock();
+                break;
+            }
+            T obj = null;
+            /*资源不在缓存中的获取情况*/
+            try {
+                obj = getFoCache(key);
+            } catch (Exception e) {
+                lock.lock();
+                /*操作共享变量 --- 线程不安全的*/
+                count--;
+                getting.remove(key);
+                lock.unlock();
+                loading.completeExceptionally(e);
+                throw e;
+            }
+            /*成功在文件中获取到资源后*/
+            lock.lock();
+            cache.put(key, obj);
+            getting.remove(key);
+            references.put(key, 1);
+            if(isBounded()) {
+                policy.onInsert(key);
+            }
+            lock.unlock();
+            loading.complete(obj);
+            return obj;
+        }
+
+        /*等待其他线程的加载结果  加载失败时抛出加载线程遇到的异常*/
+        private void awaitLoading(CompletableFuture<T> loading) throws Exception {
+            try {
+                loading.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+
+        /*
+        * 淘汰一个引用数为0的资源  --- 调用时需要持有锁
+        * 被淘汰的资源先回源(脏数据写回)，再移出缓存
+        * */
+        private void evict() throws Exception {
+            if(!evictOne()) {
+                throw CacheFullException;
+            }
+        }
+
+        /*淘汰一个引用数为0的资源  没有可以淘汰的资源时返回false*/
+        private boolean evictOne() {
+            long victim = policy.victim(k -> references.get(k, 0) == 0);
+            if(victim == EvictionPolicy.NO_VICTIM) {
+                return false;
+            }
+            T obj = cache.remove(victim);
+            references.remove(victim);
+            count--;
+            releaseForCache(obj);
+            return true;
+        }
+
+        boolean contains(long key) {
+            lock.lock();
+            try {
+                return cache.containsKey(key) || getting.containsKey(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*预读的资源按新加载的资源插入淘汰策略  中点LRU下进入old区，不会挤掉热点资源*/
+        boolean preload(long key, T obj, BooleanSupplier current) {
+            lock.lock();
+            try {
+                if(!isBounded() || cache.containsKey(key) || getting.containsKey(key)
+                        || !current.getAsBoolean()) {
+                    return false;
+                }
+                if(count == maxResource && !evictOne()) {
+                    return false;
+                }
+                count++;
+                cache.put(key, obj);
+                references.put(key, 0);
+                policy.onInsert(key);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long key){
+            lock.lock();
+            try {
+                int ref = references.get(key, 0) - 1;
+                /*
+                * 引用数减为0
+                *   没有容量限制：移除缓存和资源计数 回源
+                *   有容量限制：留在缓存中，等待被淘汰
+                * */
+                if(ref == 0 && !isBounded()){
+                    T obj = cache.get(key);
+                    releaseForCache(obj);
+                    references.remove(key);
+                    cache.remove(key);
+                    count--;
+                }else {
+                    references.put(key, ref);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void pinResident(Predicate<? super T> filter, List<T> res) {
+            lock.lock();
+            try {
+                int start = res.size();
+                int limit = isBounded() ? Math.max(1, maxResource / 2) : Integer.MAX_VALUE;
+                cache.forEach((key, obj) -> {
+                    if(res.size() - start < limit && filter.test(obj)) {
+                        references.put(key, references.get(key, 0) + 1);
+                        res.add(obj);
+                    }
+                });
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void discard(LongPredicate filter, Consumer<? super T> discarded) {
+            lock.lock();
+            try {
+                for(long key : cache.keys()) {
+                    if(!filter.test(key) || references.get(key, 0) > 0) {
+                        continue;
+                    }
+                    T obj = cache.remove(key);
+                    references.remove(key);
+                    count--;
+                    if(isBounded()) {
+                        policy.onRemove(key);
+                    }
+                    discarded.accept(obj);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close(){
+            lock.lock();
+            try {
+                cache.forEach((key, obj) -> releaseForCache(obj));
+                cache.clear();
+                references.clear();
+                count = getting.size();
+                if(isBounded()) {
+                    policy.clear();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isBounded() {
+            return maxResource > 0;
+        }
+    }
+
 }
@@ -0,0 +1,107 @@
+package cuit.ljzhang.jydb.backend.common;
+
+import cuit.ljzhang.jydb.backend.common.primitive.LongIntHashMap;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * @ClassName ClockPolicy
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 10:31
+ * @Version 1.0
+ * CLOCK(二次机会)算法：
+ *      --- 所有资源排成一个环，每个资源有一个访问位
+ *      --- 命中时只置访问位，不需要移动节点，比LRU更便宜
+ *      --- 淘汰时指针转动：访问位为1则清零跳过，为0则淘汰
+ *      --- 移除资源时用环的最后一个元素填补空位
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    private long[] keys;
+    private boolean[] referenced;
+    private int size;
+
+    /*key在环中的下标*/
+    private LongIntHashMap index;
+
+    /*时钟指针*/
+    private int hand;
+
+    public ClockPolicy() {
+        keys = new long[16];
+        referenced = new boolean[16];
+        index = new LongIntHashMap();
+    }
+
+    @Override
+    public void onInsert(long key) {
+        if(size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            referenced = Arrays.copyOf(referenced, size << 1);
+        }
+        keys[size] = key;
+        referenced[size] = false;
+        index.put(key, size);
+        size++;
+    }
+
+    @Override
+    public void onAccess(long key) {
+        int i = index.get(key, -1);
+        if(i >= 0) {
+            referenced[i] = true;
+        }
+    }
+
+    @Override
+    public void onRemove(long key) {
+        int i = index.get(key, -1);
+        if(i >= 0) {
+            index.remove(key);
+            removeAt(i);
+        }
+    }
+
+    @Override
+    public long victim(LongPredicate evictable) {
+        /*最多转两圈：第一圈清掉访问位，第二圈一定能找到访问位为0的资源*/
+        for(int step = 0; step < 2 * size; step++) {
+            if(hand >= size) {
+                hand = 0;
+            }
+            long key = keys[hand];
+            if(!evictable.test(key)) {
+                hand++;
+                continue;
+            }
+            if(referenced[hand]) {
+                referenced[hand] = false;
+                hand++;
+                continue;
+            }
+            index.remove(key);
+            removeAt(hand);
+            return key;
+        }
+        return NO_VICTIM;
+    }
+
+    /*用最后一个元素填补下标i*/
+    private void removeAt(int i) {
+        size--;
+        if(i != size) {
+            keys[i] = keys[size];
+            referenced[i] = referenced[size];
+            index.put(keys[i], i);
+        }
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        hand = 0;
+        index.clear();
+    }
+}
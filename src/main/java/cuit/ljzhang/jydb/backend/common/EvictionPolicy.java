@@ -0,0 +1,51 @@
+package cuit.ljzhang.jydb.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * @InterfaceName EvictionPolicy
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 10:12
+ * @Version 1.0
+ * 缓存淘汰策略：
+ *      --- 由AbstractCache在持有缓存锁的情况下调用，实现类不需要自己保证线程安全
+ *      --- 策略只负责记录访问顺序，选出的牺牲者必须满足evictable(没有被引用)
+ *      --- 回源(releaseForCache)仍然由AbstractCache完成
+ */
+public interface EvictionPolicy {
+
+    /*没有可以淘汰的资源*/
+    long NO_VICTIM = -1;
+
+    /*资源从数据源加载进缓存*/
+    void onInsert(long key);
+
+    /*资源在缓存中被命中*/
+    void onAccess(long key);
+
+    /*资源被移出缓存*/
+    void onRemove(long key);
+
+    /*
+    * 选出一个可以淘汰的资源并将其从策略中移除
+    * 没有满足条件的资源时返回NO_VICTIM
+    * */
+    long victim(LongPredicate evictable);
+
+    /*清空所有记录*/
+    void clear();
+
+    static EvictionPolicy lru() {
+        return new LruPolicy();
+    }
+
+    static EvictionPolicy clock() {
+        return new ClockPolicy();
+    }
+
+    /*InnoDB风格的 yang区 + old区 中点插入LRU*/
+    static EvictionPolicy midpointLru() {
+        return new MidpointLruPolicy();
+    }
+}
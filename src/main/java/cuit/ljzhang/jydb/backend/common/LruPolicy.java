@@ -0,0 +1,93 @@
+package cuit.ljzhang.jydb.backend.common;
+
+import cuit.ljzhang.jydb.backend.common.primitive.LongObjectHashMap;
+
+import java.util.function.LongPredicate;
+
+/**
+ * @ClassName LruPolicy
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 10:20
+ * @Version 1.0
+ * 最近最少使用：
+ *      --- 双向链表按访问顺序排列，头部为最久未被访问的资源
+ *      --- 命中时把节点移动到尾部，只有加载新资源时才会分配节点
+ *      --- 淘汰时从头部开始找第一个没有被引用的资源
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    private static class Node {
+        long key;
+        Node prev;
+        Node next;
+    }
+
+    /*哨兵节点  head.next最久未被访问  head.prev最近被访问*/
+    private Node head;
+
+    private LongObjectHashMap<Node> nodes;
+
+    public LruPolicy() {
+        nodes = new LongObjectHashMap<>();
+        head = new Node();
+        head.prev = head;
+        head.next = head;
+    }
+
+    @Override
+    public void onInsert(long key) {
+        Node node = new Node();
+        node.key = key;
+        nodes.put(key, node);
+        linkLast(node);
+    }
+
+    @Override
+    public void onAccess(long key) {
+        Node node = nodes.get(key);
+        if(node != null) {
+            unlink(node);
+            linkLast(node);
+        }
+    }
+
+    @Override
+    public void onRemove(long key) {
+        Node node = nodes.remove(key);
+        if(node != null) {
+            unlink(node);
+        }
+    }
+
+    @Override
+    public long victim(LongPredicate evictable) {
+        for(Node n = head.next; n != head; n = n.next) {
+            if(evictable.test(n.key)) {
+                nodes.remove(n.key);
+                unlink(n);
+                return n.key;
+            }
+        }
+        return NO_VICTIM;
+    }
+
+    @Override
+    public void clear() {
+        nodes.clear();
+        head.prev = head;
+        head.next = head;
+    }
+
+    private void linkLast(Node n) {
+        n.prev = head.prev;
+        n.next = head;
+        head.prev.next = n;
+        head.prev = n;
+    }
+
+    private void unlink(Node n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+    }
+}
@@ -0,0 +1,193 @@
+package cuit.ljzhang.jydb.backend.common;
+
+import cuit.ljzhang.jydb.backend.common.primitive.LongObjectHashMap;
+
+import java.util.function.LongPredicate;
+
+/**
+ * @ClassName MidpointLruPolicy
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 10:45
+ * @Version 1.0
+ * InnoDB中的LRU：链表被中点分成 yang区 和 old区
+ *      --- 新加载的资源插入old区头部(中点)，而不是整个链表的头部
+ *      --- 在old区存活超过一秒后再次被读取，才会进入yang区头部
+ *          ---全表扫描这类只读一次的页面不会把热点页面挤出缓存
+ *      --- yang区前1/4被访问时不会重新移动到头节点，减少链表操作
+ *      --- old区约占整个链表的3/8
+ *      --- 淘汰时先从old区尾部开始，再到yang区尾部
+ */
+public class MidpointLruPolicy implements EvictionPolicy {
+
+    /*old区停留多久之后才能被提升到yang区*/
+    private static final long OLD_BLOCK_TIME = 1000;
+
+    /*old区占比 3/8*/
+    private static final int OLD_RATIO_NUM = 3;
+    private static final int OLD_RATIO_DEN = 8;
+
+    private static class Node {
+        long key;
+        Node prev;
+        Node next;
+        boolean young;
+        /*进入old区的时间*/
+        long oldSince;
+        /*最近一次移动到yang区头部时的序号*/
+        long youngSeq;
+    }
+
+    /*两个链表都带哨兵节点  head.next为头部  tail.prev为尾部*/
+    private Node youngHead, youngTail;
+    private Node oldHead, oldTail;
+    private int youngSize;
+    private int oldSize;
+
+    /*每次有资源移动到yang区头部都会自增*/
+    private long youngCounter;
+
+    private LongObjectHashMap<Node> nodes;
+
+    public MidpointLruPolicy() {
+        nodes = new LongObjectHashMap<>();
+        youngHead = new Node();
+        youngTail = new Node();
+        oldHead = new Node();
+        oldTail = new Node();
+        youngHead.next = youngTail;
+        youngTail.prev = youngHead;
+        oldHead.next = oldTail;
+        oldTail.prev = oldHead;
+    }
+
+    @Override
+    public void onInsert(long key) {
+        Node node = new Node();
+        node.key = key;
+        nodes.put(key, node);
+        pushOld(node);
+        balance();
+    }
+
+    @Override
+    public void onAccess(long key) {
+        Node node = nodes.get(key);
+        if(node == null) {
+            return;
+        }
+        if(!node.young) {
+            /*在old区存活超过一秒 被读取进入yang区*/
+            if(System.currentTimeMillis() - node.oldSince >= OLD_BLOCK_TIME) {
+                unlink(node);
+                pushYoung(node);
+                balance();
+            }
+            return;
+        }
+        /*yang区前1/4不会重新移动到头节点*/
+        if(youngCounter - node.youngSeq > youngSize / 4) {
+            unlink(node);
+            pushYoung(node);
+        }
+    }
+
+    @Override
+    public void onRemove(long key) {
+        Node node = nodes.remove(key);
+        if(node != null) {
+            unlink(node);
+            balance();
+        }
+    }
+
+    @Override
+    public long victim(LongPredicate evictable) {
+        Node node = scanFromTail(oldHead, oldTail, evictable);
+        if(node == null) {
+            node = scanFromTail(youngHead, youngTail, evictable);
+        }
+        if(node == null) {
+            return NO_VICTIM;
+        }
+        nodes.remove(node.key);
+        unlink(node);
+        balance();
+        return node.key;
+    }
+
+    @Override
+    public void clear() {
+        nodes.clear();
+        youngHead.next = youngTail;
+        youngTail.prev = youngHead;
+        oldHead.next = oldTail;
+        oldTail.prev = oldHead;
+        youngSize = 0;
+        oldSize = 0;
+    }
+
+    private Node scanFromTail(Node head, Node tail, LongPredicate evictable) {
+        for(Node n = tail.prev; n != head; n = n.prev) {
+            if(evictable.test(n.key)) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    /*
+    * 维持old区的比例 --- 相当于移动中点
+    *   old区太小：yang区尾部降级到old区头部
+    *   old区太大：old区头部升级到yang区尾部
+    * */
+    private void balance() {
+        int target = (youngSize + oldSize) * OLD_RATIO_NUM / OLD_RATIO_DEN;
+        while(oldSize < target && youngSize > 0) {
+            Node n = youngTail.prev;
+            unlink(n);
+            pushOld(n);
+        }
+        while(oldSize > target + 1) {
+            Node n = oldHead.next;
+            unlink(n);
+            n.young = true;
+            n.youngSeq = youngCounter;
+            linkBefore(youngTail, n);
+            youngSize++;
+        }
+    }
+
+    private void pushOld(Node n) {
+        n.young = false;
+        n.oldSince = System.currentTimeMillis();
+        linkBefore(oldHead.next, n);
+        oldSize++;
+    }
+
+    private void pushYoung(Node n) {
+        n.young = true;
+        n.youngSeq = ++youngCounter;
+        linkBefore(youngHead.next, n);
+        youngSize++;
+    }
+
+    private void linkBefore(Node at, Node n) {
+        n.prev = at.prev;
+        n.next = at;
+        at.prev.next = n;
+        at.prev = n;
+    }
+
+    private void unlink(Node n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = null;
+        n.next = null;
+        if(n.young) {
+            youngSize--;
+        } else {
+            oldSize--;
+        }
+    }
+}
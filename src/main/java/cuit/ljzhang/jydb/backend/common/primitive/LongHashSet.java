@@ -0,0 +1,126 @@
+package cuit.ljzhang.jydb.backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * @ClassName LongHashSet
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 13:30
+ * @Version 1.0
+ * long 的开放地址hash集合
+ *      --- 事务快照等只需要判断是否存在的场合使用
+ *      --- 非线程安全，由使用者加锁
+ */
+public class LongHashSet {
+
+    private long[] keys;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public LongHashSet() {
+        this(LongHashing.DEFAULT_CAPACITY / 2);
+    }
+
+    public LongHashSet(int expected) {
+        allocate(LongHashing.capacityFor(expected));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        int pos = LongHashing.mix(key) & mask;
+        while(used[pos]) {
+            if(keys[pos] == key) {
+                return pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -(pos + 1);
+    }
+
+    public boolean contains(long key) {
+        return slot(key) >= 0;
+    }
+
+    /*返回是否是新加入的key*/
+    public boolean add(long key) {
+        int pos = slot(key);
+        if(pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        used[pos] = true;
+        keys[pos] = key;
+        if(++size > (mask + 1) >> 1) {
+            rehash((mask + 1) << 1);
+        }
+        return true;
+    }
+
+    public boolean remove(long key) {
+        int pos = slot(key);
+        if(pos < 0) {
+            return false;
+        }
+        size--;
+        int last;
+        while(true) {
+            pos = ((last = pos) + 1) & mask;
+            while(true) {
+                if(!used[pos]) {
+                    used[last] = false;
+                    return true;
+                }
+                int slot = LongHashing.mix(keys[pos]) & mask;
+                if(LongHashing.canShift(last, slot, pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldUsed[i]) {
+                int pos = -slot(oldKeys[i]) - 1;
+                used[pos] = true;
+                keys[pos] = oldKeys[i];
+            }
+        }
+    }
+
+    public long[] toArray() {
+        long[] res = new long[size];
+        int n = 0;
+        for(int i = 0; i < keys.length; i++) {
+            if(used[i]) {
+                res[n++] = keys[i];
+            }
+        }
+        return res;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+}
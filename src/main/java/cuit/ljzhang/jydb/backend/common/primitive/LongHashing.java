@@ -0,0 +1,40 @@
+package cuit.ljzhang.jydb.backend.common.primitive;
+
+/**
+ * @ClassName LongHashing
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 13:05
+ * @Version 1.0
+ * 开放地址(线性探测)hash表的公共计算
+ *      --- uid、xid、页号大多是连续的整数，需要先打散再取模
+ *      --- 容量总是2的幂，装载因子固定为1/2
+ */
+final class LongHashing {
+
+    static final int DEFAULT_CAPACITY = 16;
+
+    private LongHashing() {}
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /*能容纳expected个元素的最小容量*/
+    static int capacityFor(int expected) {
+        int cap = DEFAULT_CAPACITY;
+        while(cap < expected * 2) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    /*
+    * 删除slot之后，判断位置pos上的元素能否前移到空出来的last
+    * 元素的理想位置slot不在(last, pos]这个环形区间内时才能移动
+    * */
+    static boolean canShift(int last, int slot, int pos) {
+        return last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos);
+    }
+}
@@ -0,0 +1,108 @@
+package cuit.ljzhang.jydb.backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * @ClassName LongList
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 13:36
+ * @Version 1.0
+ * 不装箱的 long 动态数组
+ *      --- 用来代替 List<Long>
+ *      --- 非线程安全，由使用者加锁
+ */
+public class LongList {
+
+    private long[] elements;
+    private int size;
+
+    public LongList() {
+        this(8);
+    }
+
+    public LongList(int capacity) {
+        elements = new long[Math.max(capacity, 1)];
+    }
+
+    public long get(int index) {
+        checkIndex(index);
+        return elements[index];
+    }
+
+    public void add(long value) {
+        grow();
+        elements[size++] = value;
+    }
+
+    /*在index处插入  之后的元素后移*/
+    public void add(int index, long value) {
+        if(index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        grow();
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = value;
+        size++;
+    }
+
+    /*删除index处的元素并返回*/
+    public long removeAt(int index) {
+        checkIndex(index);
+        long value = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        size--;
+        return value;
+    }
+
+    /*删除第一个等于value的元素*/
+    public boolean removeValue(long value) {
+        int index = indexOf(value);
+        if(index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    public int indexOf(long value) {
+        for(int i = 0; i < size; i++) {
+            if(elements[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(long value) {
+        return indexOf(value) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    private void grow() {
+        if(size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
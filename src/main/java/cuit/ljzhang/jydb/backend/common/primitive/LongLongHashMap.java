@@ -0,0 +1,161 @@
+package cuit.ljzhang.jydb.backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * @ClassName LongLongHashMap
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 13:26
+ * @Version 1.0
+ * long -> long 的开放地址hash表
+ *      --- key不装箱，查找和插入不产生任何对象
+ *      --- 删除时后移填补(backward shift)，不留墓碑
+ *      --- 非线程安全，由使用者加锁
+ */
+public class LongLongHashMap {
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public LongLongHashMap() {
+        this(LongHashing.DEFAULT_CAPACITY / 2);
+    }
+
+    public LongLongHashMap(int expected) {
+        allocate(LongHashing.capacityFor(expected));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /*key所在的位置，不存在时返回第一个空位的 -(pos + 1)*/
+    private int slot(long key) {
+        int pos = LongHashing.mix(key) & mask;
+        while(used[pos]) {
+            if(keys[pos] == key) {
+                return pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -(pos + 1);
+    }
+
+    /*key不存在时返回defaultValue*/
+    public long get(long key, long defaultValue) {
+        int pos = slot(key);
+        return pos < 0 ? defaultValue : values[pos];
+    }
+
+    public boolean containsKey(long key) {
+        return slot(key) >= 0;
+    }
+
+    /*返回是否是新插入的key*/
+    public boolean put(long key, long value) {
+        int pos = slot(key);
+        if(pos >= 0) {
+            values[pos] = value;
+            return false;
+        }
+        pos = -pos - 1;
+        used[pos] = true;
+        keys[pos] = key;
+        values[pos] = value;
+        if(++size > (mask + 1) >> 1) {
+            rehash((mask + 1) << 1);
+        }
+        return true;
+    }
+
+    /*返回是否删除了key*/
+    public boolean remove(long key) {
+        int pos = slot(key);
+        if(pos < 0) {
+            return false;
+        }
+        removeAt(pos);
+        return true;
+    }
+
+    private void removeAt(int pos) {
+        size--;
+        int last;
+        while(true) {
+            pos = ((last = pos) + 1) & mask;
+            while(true) {
+                if(!used[pos]) {
+                    used[last] = false;
+                    return;
+                }
+                int slot = LongHashing.mix(keys[pos]) & mask;
+                if(LongHashing.canShift(last, slot, pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldUsed[i]) {
+                int pos = -slot(oldKeys[i]) - 1;
+                used[pos] = true;
+                keys[pos] = oldKeys[i];
+                values[pos] = oldValues[i];
+            }
+        }
+    }
+
+    /*遍历过程中不能修改当前表*/
+    public void forEach(Visitor visitor) {
+        for(int i = 0; i < keys.length; i++) {
+            if(used[i]) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    /*所有key的拷贝  遍历时需要修改表的场合使用*/
+    public long[] keys() {
+        long[] res = new long[size];
+        int n = 0;
+        for(int i = 0; i < keys.length; i++) {
+            if(used[i]) {
+                res[n++] = keys[i];
+            }
+        }
+        return res;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+}
@@ -4,6 +4,7 @@ import cuit.ljzhang.jydb.backend.dm.dataItem.DataItem;
 import cuit.ljzhang.jydb.backend.dm.logger.Logger;
 import cuit.ljzhang.jydb.backend.dm.page.PageOne;
 import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
+import cuit.ljzhang.jydb.backend.dm.pageIndex.FreeSpaceMap;
 import cuit.ljzhang.jydb.backend.tm.TransactionManager;
 
 /**
@@ -20,6 +21,18 @@ public interface DataManager {
     long insert(long xid, byte[] data) throws Exception;
     void close();
 
+    /*事务提交前调用：该事务写过的日志全部落盘*/
+    void flushLog(long xid);
+
+    /*
+    * 事务提交或回滚之后调用：清理该事务的LSN记录
+    * 回滚不需要等待日志落盘；清理之后检查点才能回收该事务的日志
+    * */
+    void forgetLog(long xid);
+
+    /*检查点：所有脏页落盘，回收不再需要的日志段*/
+    void checkpoint();
+
     /*
     * 创建空文件
     * 对第一页空间进行初始化
@@ -28,8 +41,10 @@ public interface DataManager {
     public static DataManager create(String path, long memory, TransactionManager tm) {
         PageCache pc = PageCache.create(path, memory);
         Logger lg = Logger.create(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
         dm.initPageOne();
+        dm.startCheckpointer();
         return dm;
     }
 
@@ -39,16 +54,25 @@ public interface DataManager {
     * 初始化日志
     * */
     public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, tm, RecoveryListener.CONSOLE);
+    }
+
+    /*listener:需要恢复时接收恢复的进度和统计*/
+    public static DataManager open(String path, long mem, TransactionManager tm, RecoveryListener listener) {
         PageCache pc = PageCache.open(path, mem);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap fsm = FreeSpaceMap.open(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
         /*数据校验不通过  --- 执行日志恢复策略*/
-        if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+        boolean clean = dm.loadCheckPageOne();
+        if(!clean) {
+            Recover.recover(tm, lg, pc, Recover.REDO_THREADS, listener);
         }
-        dm.fillPageIndex();
+        /*正常关闭时才能使用上一次写入的空闲空间表*/
+        dm.fillPageIndex(clean && fsm.load(PageOne.getVc(dm.pageOne)));
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer();
         return dm;
     }
 }
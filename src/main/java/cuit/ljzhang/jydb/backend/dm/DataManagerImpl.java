@@ -1,6 +1,9 @@
 package cuit.ljzhang.jydb.backend.dm;
 
 import cuit.ljzhang.jydb.backend.common.AbstractCache;
+import cuit.ljzhang.jydb.backend.common.EvictionPolicy;
+import cuit.ljzhang.jydb.backend.common.primitive.LongList;
+import cuit.ljzhang.jydb.backend.common.primitive.LongLongHashMap;
 import cuit.ljzhang.jydb.backend.dm.dataItem.DataItem;
 import cuit.ljzhang.jydb.backend.dm.dataItem.DataItemImpl;
 import cuit.ljzhang.jydb.backend.dm.logger.Logger;
@@ -8,12 +11,18 @@ import cuit.ljzhang.jydb.backend.dm.page.Page;
 import cuit.ljzhang.jydb.backend.dm.page.PageOne;
 import cuit.ljzhang.jydb.backend.dm.page.PageX;
 import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
+import cuit.ljzhang.jydb.backend.dm.pageIndex.FreeSpaceMap;
 import cuit.ljzhang.jydb.backend.dm.pageIndex.PageIndex;
 import cuit.ljzhang.jydb.backend.dm.pageIndex.PageInfo;
 import cuit.ljzhang.jydb.backend.tm.TransactionManager;
+import cuit.ljzhang.jydb.backend.tm.TransactionManagerImpl;
 import cuit.ljzhang.jydb.backend.utils.Panic;
 import cuit.ljzhang.jydb.backend.utils.Types;
 
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
 import static cuit.ljzhang.jydb.common.Error.DataTooLargeException;
 import static cuit.ljzhang.jydb.common.Error.DatabaseBusyException;
 
@@ -23,6 +32,13 @@ import static cuit.ljzhang.jydb.common.Error.DatabaseBusyException;
  * @Author ljzhang
  * @Date 2023/7/28 20:10
  * @Version 1.0
+ * 检查点：
+ *      --- 记下当前的LSN(redoLsn)和活跃事务的第一条日志，然后把所有脏页刷盘
+ *          --- redoLsn之前的日志对页面的修改都已经落盘，不再需要重做
+ *          --- 活跃事务崩溃后需要回滚，它们的日志要保留
+ *      --- 写入检查点日志并落盘，第一页记录它的位置，恢复时从这里开始
+ *      --- redoLsn和活跃事务第一条日志中最小的LSN之前的日志段可以回收
+ *      --- 后台线程在日志增长超过一个日志段之后做一次检查点
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
     /*事务管理*/
@@ -37,15 +53,47 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     /*页面索引*/
     PageIndex pIndex;
 
+    /*空闲空间表  正常关闭时写入文件，下次打开时重建页面索引*/
+    FreeSpaceMap fsm;
+
     /*页面*/
     Page pageOne;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+    /*每个事务最后一条日志的LSN --- 提交时日志只需要落盘到这里*/
+    private LongLongHashMap xidLsn;
+
+    /*每个事务写第一条日志之前的LSN --- 检查点不能回收这之后的日志*/
+    private LongLongHashMap xidFirstLsn;
+    private Lock xidLsnLock;
+
+    /*检查点间隔 毫秒*/
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    /*后台检查点线程*/
+    private Thread checkpointer;
+
+    /*同一时间只有一个检查点在进行*/
+    private Lock checkpointLock;
+
+    /*最近一次检查点的redoLsn*/
+    private volatile long checkpointLsn;
+
+    private volatile boolean closed;
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
+        super(0, defaultConcurrency(), EvictionPolicy::lru);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
+        this.fsm = fsm;
         this.pIndex = new PageIndex();
+        this.xidLsn = new LongLongHashMap();
+        this.xidFirstLsn = new LongLongHashMap();
+        this.xidLsnLock = new ReentrantLock();
+        this.checkpointLock = new ReentrantLock();
+        this.checkpointLsn = logger.currentLsn();
+        /*页面写回之前日志先落盘*/
+        pc.setLogger(logger);
     }
 
     /*
@@ -82,19 +130,94 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         pc.flushPage(pageOne);
     }
 
-    /*初始化页面索引*/
-    void fillPageIndex() {
+    /*
+    * 初始化页面索引
+    * useFsm:空闲空间表是上一次正常关闭时写入的 --- 记录到的页面直接从中读取空闲空间
+    * 其余页面顺序扫描 --- 每READ_AHEAD_PAGES页提示页面缓存预读一次，一次读盘读入一组页面
+    * 没有写入过数据的空页不放进页面索引：
+    *   --- 文件末尾的空页直接截断
+    *   --- 中间的空页重新记录到第一页的空闲页链表，新建页面时复用
+    * */
+    void fillPageIndex(boolean useFsm) {
         int pageNumber = pc.getPageNumbers();
+        /*空闲空间表记录到的最后一页*/
+        int mapped = useFsm ? Math.min(fsm.getPageCount(), pageNumber) : 1;
+        /*最后一个写入过数据的页面*/
+        int lastUsed = 1;
+        LongList empty = new LongList();
         for(int i = 2; i <= pageNumber; i ++) {
-            Page pg = null;
-            try {
-                pg = pc.getPage(i);
-            } catch (Exception e) {
-                Panic.panic(e);
+            int freeSpace;
+            if(i <= mapped) {
+                freeSpace = fsm.get(i);
+            } else {
+                if((i - mapped - 1) % PageCache.READ_AHEAD_PAGES == 0) {
+                    pc.prefetch(i, PageCache.READ_AHEAD_PAGES);
+                }
+                Page pg = null;
+                try {
+                    pg = pc.getPage(i);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                /*全是0的页面FSO也是0  空闲空间按空页记录*/
+                freeSpace = PageX.isEmpty(pg) ? PageX.MAX_FREE_SPACE : PageX.getFreeSpace(pg);
+                pg.release();
+                fsm.set(i, freeSpace);
+            }
+            if(freeSpace >= PageX.MAX_FREE_SPACE) {
+                empty.add(i);
+            } else {
+                pIndex.add(i, freeSpace);
+                lastUsed = i;
+            }
+        }
+        pageOne.lock();
+        try {
+            PageOne.clearFreePages(pageOne);
+            for(int i = 0; i < empty.size() && empty.get(i) < lastUsed; i++) {
+                int pgno = (int) empty.get(i);
+                /*链表记满了 --- 剩下的空页当作普通页放进页面索引*/
+                if(!PageOne.pushFreePage(pageOne, pgno)) {
+                    resetPage(pgno);
+                    pIndex.add(pgno, PageX.MAX_FREE_SPACE);
+                }
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
-            pg.release();
+        } finally {
+            pageOne.unlock();
+        }
+        pc.truncateByBgno(lastUsed);
+        fsm.truncate(lastUsed);
+    }
+
+    /*
+    * 新建页面
+    * 优先复用空闲页链表中的页面，链表为空时才扩展文件
+    * */
+    int newPage() {
+        int pageNumber;
+        pageOne.lock();
+        try {
+            pageNumber = PageOne.popFreePage(pageOne);
+        } finally {
+            pageOne.unlock();
+        }
+        if(pageNumber == 0) {
+            return pc.newPage(PageX.initRaw());
+        }
+        resetPage(pageNumber);
+        return pageNumber;
+    }
+
+    /*空页里可能是扩展文件后没有写入的0  复用之前重新初始化*/
+    private void resetPage(int pageNumber) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pageNumber);
+        } catch (Exception e) {
+            Panic.panic(e);
         }
+        PageX.reset(pg);
+        pg.release();
     }
 
     /*打开数据存储文件的第一页PageOne  校验文件的正确性*/
@@ -138,7 +261,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             if(pageInfo != null){
                 break;
             }else {
-                int newPageNumber = pc.newPage(PageX.initRaw());
+                int newPageNumber = newPage();
                 pIndex.add(newPageNumber, PageX.MAX_FREE_SPACE);
             }
         }
@@ -148,26 +271,130 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         int freeSpace = 0;
         try {
             page = pc.getPage(pageInfo.pageNumber);
-            /*先写入日志*/
-            byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
-            short offset = PageX.insert(page, raw);
-            page.release();
+            /*
+            * 先写入日志  日志追加和页面修改在页面锁内完成
+            * 后台刷盘线程拷贝页面时拿到的LSN一定覆盖了页面上的修改
+            * */
+            short offset;
+            long lsn;
+            page.lock();
+            try {
+                /*
+                * 写日志之前先在页面锁内标记为脏页  和DataItem的before()一致
+                * 检查点取得的redoLsn覆盖了这条日志时，刷脏页一定能看到这个页面
+                * */
+                page.setDirty(true);
+                byte[] log = Recover.insertLog(xid, page, raw);
+                recordFirstLsn(xid);
+                lsn = logger.log(log);
+                page.setLsn(lsn);
+                offset = PageX.insert(page, raw);
+            } finally {
+                page.unlock();
+            }
+            recordLsn(xid, lsn);
             return Types.addressToUid(pageInfo.pageNumber, offset);
         } finally {
+            /*页面释放之后页帧可能被其他页面复用  空闲空间要在释放之前读取*/
             if(page != null){
-                pIndex.add(pageInfo.pageNumber, PageX.getFreeSpace(page));
-            }else{
-                pIndex.add(pageInfo.pageNumber, freeSpace);
+                freeSpace = PageX.getFreeSpace(page);
+                page.release();
+                fsm.set(pageInfo.pageNumber, freeSpace);
+            }
+            pIndex.add(pageInfo.pageNumber, freeSpace);
+        }
+    }
+
+    /*
+    * 启动后台检查点线程
+    * 打开数据库时恢复完成之后才启动，恢复过程中的页面不能被当作检查点
+    * */
+    void startCheckpointer() {
+        checkpointer = new Thread(this::checkpointLoop, "jydb-checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /*每隔CHECKPOINT_INTERVAL毫秒检查一次  日志增长超过一个日志段时做检查点*/
+    private void checkpointLoop() {
+        while(!closed) {
+            LockSupport.parkNanos(CHECKPOINT_INTERVAL * 1_000_000L);
+            if(closed) {
+                break;
+            }
+            if(logger.currentLsn() - checkpointLsn >= Logger.SEGMENT_SIZE) {
+                checkpoint();
             }
         }
     }
 
+    @Override
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            /*
+            * 在xidLsnLock中读取  和事务记录第一条日志的LSN互斥：
+            * 没有统计到的事务，第一条日志一定在redoLsn之后
+            * */
+            long redoLsn;
+            long[] xids;
+            long[] firstLsns;
+            xidLsnLock.lock();
+            try {
+                redoLsn = logger.currentLsn();
+                xids = xidFirstLsn.keys();
+                firstLsns = new long[xids.length];
+                for(int i = 0; i < xids.length; i++) {
+                    firstLsns[i] = xidFirstLsn.get(xids[i], redoLsn);
+                }
+            } finally {
+                xidLsnLock.unlock();
+            }
+            long oldest = redoLsn;
+            for(long lsn : firstLsns) {
+                oldest = Math.min(oldest, lsn);
+            }
+            pageOne.lock();
+            try {
+                PageOne.setCheckpointPages(pageOne, pc.getPageNumbers());
+            } finally {
+                pageOne.unlock();
+            }
+            /*redoLsn之前的日志对页面的修改都在内存中  刷盘之后就不再需要重做*/
+            pc.checkpoint();
+            /*检查点日志落盘之后才更新第一页  崩溃时第一页仍然指向上一个检查点，它的日志还没有被回收*/
+            long before = logger.currentLsn();
+            logger.flush(logger.log(Recover.checkpointLog(redoLsn, xids, firstLsns)));
+            pageOne.lock();
+            try {
+                PageOne.setCheckpointLsn(pageOne, before);
+            } finally {
+                pageOne.unlock();
+            }
+            pc.flushPage(pageOne);
+            logger.reclaim(oldest);
+            checkpointLsn = redoLsn;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
     @Override
     public void close() {
+        closed = true;
+        if(checkpointer != null) {
+            LockSupport.unpark(checkpointer);
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
         logger.close();
 
+        /*空闲空间表先落盘  第一页标记为正常关闭之后它才会被使用*/
+        fsm.close(PageOne.getVc(pageOne), pc.getPageNumbers());
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
@@ -178,9 +405,71 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         super.release(dataItem.getUid());
     }
 
-    /*生成更新日志*/
-    public void logDataItem(long xid, DataItem dataItem) {
+    /*生成更新日志  返回日志的LSN*/
+    public long logDataItem(long xid, DataItem dataItem) {
         byte[] log = Recover.updateLog(xid, dataItem);
-        logger.log(log);
+        recordFirstLsn(xid);
+        long lsn = logger.log(log);
+        recordLsn(xid, lsn);
+        return lsn;
+    }
+
+    /*
+    * 事务写第一条日志之前记录当前的LSN
+    * 超级事务不会被回滚，不需要保留它的日志
+    * */
+    private void recordFirstLsn(long xid) {
+        if(xid == TransactionManagerImpl.SUPER_XID) {
+            return;
+        }
+        xidLsnLock.lock();
+        try {
+            if(!xidFirstLsn.containsKey(xid)) {
+                xidFirstLsn.put(xid, logger.currentLsn());
+            }
+        } finally {
+            xidLsnLock.unlock();
+        }
+    }
+
+    /*记录事务最后一条日志的LSN*/
+    private void recordLsn(long xid, long lsn) {
+        xidLsnLock.lock();
+        try {
+            if(lsn > xidLsn.get(xid, 0)) {
+                xidLsn.put(xid, lsn);
+            }
+        } finally {
+            xidLsnLock.unlock();
+        }
+    }
+
+    /*
+    * 事务提交前 日志落盘到该事务最后一条日志
+    * 没有写过日志的事务不需要等待
+    * */
+    @Override
+    public void flushLog(long xid) {
+        long lsn;
+        xidLsnLock.lock();
+        try {
+            lsn = xidLsn.get(xid, 0);
+        } finally {
+            xidLsnLock.unlock();
+        }
+        if(lsn > 0) {
+            logger.flush(lsn);
+        }
+    }
+
+    @Override
+    public void forgetLog(long xid) {
+        xidLsnLock.lock();
+        try {
+            xidLsn.remove(xid);
+            xidFirstLsn.remove(xid);
+        } finally {
+            xidLsnLock.unlock();
+        }
     }
 }
@@ -0,0 +1,131 @@
+package cuit.ljzhang.jydb.backend.dm;
+
+import cuit.ljzhang.jydb.backend.common.SubArray;
+import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @ClassName ParallelRedo
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 19:10
+ * @Version 1.0
+ * 并行重做：
+ *      --- 不同页面上的日志互不影响，按页号 pageNumber % threads 分给重做线程
+ *          同一个页面的日志总是交给同一个线程，按日志顺序重做
+ *      --- 读日志的线程把日志拷贝下来攒成一批再交给重做线程，减少队列交互
+ *          每个重做线程的队列有上限，重做跟不上时读日志的线程等待，内存不会无限增长
+ *      --- finish()等待所有日志重做完成，之后才能截断文件、回滚活跃事务
+ *      --- 只有一个线程时不启动重做线程，直接在读日志的线程中重做
+ */
+class ParallelRedo {
+
+    /*一批日志的条数*/
+    private static final int BATCH_SIZE = 512;
+
+    /*每个重做线程最多积压的批数*/
+    private static final int QUEUE_CAPACITY = 16;
+
+    /*结束标记*/
+    private static final List<byte[]> END = new ArrayList<>();
+
+    private final PageCache pc;
+    private final int threads;
+
+    private final List<BlockingQueue<List<byte[]>>> queues;
+    private final List<List<byte[]>> batches;
+    private final Thread[] workers;
+
+    /*重做线程中出现的异常*/
+    private volatile Exception error;
+
+    ParallelRedo(PageCache pc, int threads) {
+        this.pc = pc;
+        this.threads = Math.max(1, threads);
+        this.queues = new ArrayList<>();
+        this.batches = new ArrayList<>();
+        this.workers = new Thread[this.threads > 1 ? this.threads : 0];
+        for(int i = 0; i < workers.length; i++) {
+            BlockingQueue<List<byte[]>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+            workers[i] = new Thread(() -> redoLoop(queue), "jydb-redo-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /*重做一条日志  log是日志中的视图*/
+    void redo(SubArray log, int pageNumber) {
+        if(workers.length == 0) {
+            Recover.redoLog(pc, log);
+            return;
+        }
+        int i = pageNumber % threads;
+        List<byte[]> batch = batches.get(i);
+        batch.add(Arrays.copyOfRange(log.raw, log.start, log.end));
+        if(batch.size() >= BATCH_SIZE) {
+            put(i, batch);
+            batches.set(i, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /*交出剩下的日志  等待所有重做线程结束*/
+    void finish() {
+        for(int i = 0; i < workers.length; i++) {
+            if(!batches.get(i).isEmpty()) {
+                put(i, batches.get(i));
+            }
+            put(i, END);
+        }
+        for(Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        if(error != null) {
+            Panic.panic(error);
+        }
+    }
+
+    private void put(int i, List<byte[]> batch) {
+        try {
+            queues.get(i).put(batch);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void redoLoop(BlockingQueue<List<byte[]>> queue) {
+        while(true) {
+            List<byte[]> batch = null;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+            if(batch == END) {
+                return;
+            }
+            /*出错之后只取走剩下的日志，不再重做  避免读日志的线程阻塞*/
+            if(error != null) {
+                continue;
+            }
+            try {
+                for(byte[] raw : batch) {
+                    Recover.redoLog(pc, new SubArray(raw, 0, raw.length));
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+}
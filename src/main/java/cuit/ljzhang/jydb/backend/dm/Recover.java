@@ -2,9 +2,13 @@ package cuit.ljzhang.jydb.backend.dm;
 
 import com.google.common.primitives.Bytes;
 import cuit.ljzhang.jydb.backend.common.SubArray;
+import cuit.ljzhang.jydb.backend.common.primitive.LongIntHashMap;
+import cuit.ljzhang.jydb.backend.dm.RecoveryListener.Phase;
 import cuit.ljzhang.jydb.backend.dm.dataItem.DataItem;
+import cuit.ljzhang.jydb.backend.dm.logger.LogReader;
 import cuit.ljzhang.jydb.backend.dm.logger.Logger;
 import cuit.ljzhang.jydb.backend.dm.page.Page;
+import cuit.ljzhang.jydb.backend.dm.page.PageOne;
 import cuit.ljzhang.jydb.backend.dm.page.PageX;
 import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
 import cuit.ljzhang.jydb.backend.tm.TransactionManager;
@@ -32,15 +36,33 @@ import java.util.*;
  * 日志恢复策略：
  *      1.重做所有崩溃时已完成(commit或aborted)的事务
  *      2.撤销所有崩溃时未完成(active)的事务
+ *      ---检查点之前的日志段可能已经被回收：它们对页面的修改已经落盘，活跃事务的日志一定还在
+ *      ---从第一页记录的检查点日志开始恢复：
+ *          ---redoLsn之前的修改都已经落盘，重做从redoLsn开始
+ *          ---检查点时活跃、崩溃时仍然活跃的事务需要回滚，回滚从它们中最早的第一条日志开始
+ *          ---两者都不早于回收日志段的位置，不再读取整个日志
  * 日志格式【对应日志文件中的data字段】
  *      1.[LogType][XID][UID][OldRaw][NewRaw]   更新日志
  *      2.[LogType][XID][PageNumber][Offset][Raw]    插入日志
+ *      3.[LogType][RedoLsn][XID][FirstLsn]...       检查点日志
+ *      4.[LogType][XID][UID][Offset][OldBytes][NewBytes]   差量更新日志
+ *          ---只记录DataItem中发生变化的一段字节，setXmax这样的修改只有8字节
+ *          ---重做、回滚和更新日志相同，只是写入的位置是DataItem的偏移 + Offset
  */
 public class Recover {
     /*两种日志操作类型*/
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
 
+    /*检查点日志  不修改页面*/
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+
+    /*只记录变化部分的更新日志*/
+    private static final byte LOG_TYPE_DELTA = 3;
+
+    /*默认的重做线程数*/
+    static final int REDO_THREADS = Runtime.getRuntime().availableProcessors();
+
     /*回滚和重做*/
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -54,13 +76,21 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID + 8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
 
-    /*更新日志*/
+    /*
+    * 数据结构：[LogType][XID][UID][Offset][OldBytes][NewBytes]
+    * 字节数：     1      8     8     2
+    * Offset:变化的字节在DataItem中的偏移
+    * */
+    private static final int OF_DELTA_OFFSET = OF_UPDATE_UID + 8;
+    private static final int OF_DELTA_RAW = OF_DELTA_OFFSET + 2;
+
+    /*更新日志和差量更新日志  offset是要写入的位置在页面中的偏移*/
     static class UpdateLogInfo {
         long xid;
         int pageNumber;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        SubArray oldRaw;
+        SubArray newRaw;
     }
 
     /*
@@ -76,98 +106,195 @@ public class Recover {
         long xid;
         int pageNumber;
         short offset;
-        byte[] raw;
+        SubArray raw;
+    }
+
+    /*
+    * 数据结构：[LogType][RedoLsn][XID][FirstLsn]...
+    * 字节数：     1        8      8      8
+    * 每个活跃事务一组[XID][FirstLsn]
+    * */
+    private static final int OF_CKPT_REDO = OF_TYPE + 1;
+    private static final int OF_CKPT_XIDS = OF_CKPT_REDO + 8;
+
+    /*检查点日志*/
+    static class CheckpointLogInfo {
+        long redoLsn;
+        long[] xids;
+        long[] firstLsns;
+    }
+
+    /*
+    * 当数据文件校验不通过时 执行日志恢复数据策略
+    * 只扫描一遍日志，按块读入，日志以视图的形式处理：
+    *   --- 记录所有操作记录中最大的操作页
+    *   --- redoLsn之后、崩溃时已完成的事务的日志交给ParallelRedo，按页号分给多个线程重做
+    *       同一页面的日志由同一个线程按日志顺序重做
+    *   --- 崩溃时活跃的事务的日志拷贝下来，扫描结束后逆序回滚
+    * 重做只修改最大操作页以内的页面，截断放在重做之后也不会截掉重做过的页面
+    * 回滚和截断都在所有重做完成之后进行
+    * 每个阶段的进度和耗时记录在RecoveryStats中，通过RecoveryListener和JFR事件报告
+    * */
+    public static RecoveryStats recover(TransactionManager tm, Logger logger, PageCache pc){
+        return recover(tm, logger, pc, REDO_THREADS, RecoveryListener.CONSOLE);
     }
 
-    /*当数据文件校验不通过时 执行日志恢复数据策略*/
-    public static void recover(TransactionManager tm, Logger logger, PageCache pc){
-        System.out.println("recover...");
-        logger.rewind();
+    public static RecoveryStats recover(TransactionManager tm, Logger logger, PageCache pc, int redoThreads){
+        return recover(tm, logger, pc, redoThreads, RecoveryListener.CONSOLE);
+    }
+
+    /*
+    * redoThreads:重做线程数  为1时在当前线程中串行重做
+    * listener:接收恢复的进度和统计  返回的统计和回调中的是同一个对象
+    * */
+    public static RecoveryStats recover(TransactionManager tm, Logger logger, PageCache pc,
+                                        int redoThreads, RecoveryListener listener){
+        RecoveryTracker tracker = new RecoveryTracker(listener);
+        RecoveryStats stats = tracker.stats();
+        tracker.start();
+
+        /*
+        * 从最近一次检查点开始
+        * 没有检查点时redoLsn为0，读取全部日志
+        * */
+        tracker.beginPhase(Phase.CHECKPOINT);
+        CheckpointLogInfo ckpt = readCheckpoint(logger, pc);
+        long redoLsn = 0;
+        long undoLsn = 0;
+        if(ckpt != null){
+            redoLsn = undoLsn = ckpt.redoLsn;
+            for(int i = 0; i < ckpt.xids.length; i++){
+                if(tm.isActive(ckpt.xids[i])){
+                    undoLsn = Math.min(undoLsn, ckpt.firstLsns[i]);
+                }
+            }
+        }
+        stats.setCheckpoint(ckpt != null, redoLsn, undoLsn);
+        tracker.endPhase(Phase.CHECKPOINT);
+
+        /*事务状态的缓存 --- 每个事务只查询一次XID文件  1为活跃*/
+        tracker.beginPhase(Phase.REDO);
+        LongIntHashMap active = new LongIntHashMap();
+        Map<Long, List<byte[]>> logCache = new HashMap<>();
+        /*重做或回滚会修改的页面*/
+        BitSet touched = new BitSet();
         int maxPageNumber = 0;
-        /*找到所有操作记录中的一个最大的操作页  */
+        ParallelRedo redo = new ParallelRedo(pc, redoThreads);
+        LogReader reader = logger.reader(undoLsn);
         while(true){
-            byte[] log = logger.next();
+            SubArray log = reader.next();
             if(log == null)break;
-            int pageNumber;
-            if(isInsertLog(log)){
-                InsertLogInfo iLog = parseInsertLog(log);
-                pageNumber = iLog.pageNumber;
-            }else{
-                UpdateLogInfo uLog = parseUpdateLog(log);
-                pageNumber = uLog.pageNumber;
-            }
+            tracker.scanned();
+            if(isCheckpointLog(log))continue;
+            long xid = parseXid(log);
+            int pageNumber = parsePageNumber(log);
             if(pageNumber > maxPageNumber){
                 maxPageNumber = pageNumber;
             }
+            int status = active.get(xid, -1);
+            if(status < 0){
+                status = tm.isActive(xid) ? 1 : 0;
+                active.put(xid, status);
+            }
+            if(status == 1){
+                /*只收集崩溃时仍然活跃的事务的日志  视图会被下一次读取覆盖，需要拷贝*/
+                logCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(Arrays.copyOfRange(log.raw, log.start, log.end));
+                touched.set(pageNumber);
+            }else if(reader.position() > redoLsn){
+                /*日志的结束位置在redoLsn之后 --- 这条日志在redoLsn之后*/
+                redo.redo(log, pageNumber);
+                stats.addRedoRecord();
+                touched.set(pageNumber);
+            }
+            stats.setBytesRead(reader.bytesRead());
         }
+        redo.finish();
+        stats.setBytesRead(reader.bytesRead());
+        stats.setPagesTouched(touched.cardinality());
+        tracker.endPhase(Phase.REDO);
+
+        tracker.beginPhase(Phase.TRUNCATE);
         /*第1页有重要用途 不包括在内*/
         if(maxPageNumber == 0){
             maxPageNumber = 1;
         }
+        /*检查点时文件中的页面都已落盘，对应的日志可能已经被回收  不能截断*/
+        maxPageNumber = Math.max(maxPageNumber, Math.min(checkpointPages(pc), pc.getPageNumbers()));
         /* 截断最大记录页之后的数据   */
         pc.truncateByBgno(maxPageNumber);
-        System.out.println("Truncate to " + maxPageNumber + " pages.");
+        stats.setPageNumbers(pc.getPageNumbers());
+        tracker.endPhase(Phase.TRUNCATE);
 
-        redoTranscations(tm, logger, pc);
-        System.out.println("Redo Transactions Over.");
+        tracker.beginPhase(Phase.UNDO);
+        undoTranscations(tm, pc, logCache, stats);
+        tracker.endPhase(Phase.UNDO);
 
-        undoTranscations(tm, logger, pc);
-        System.out.println("Undo Transactions Over.");
+        tracker.finish();
+        return stats;
+    }
 
-        System.out.println("Recovery Over.");
+    /*找到第一页中记录的检查点日志  没有做过检查点时返回null*/
+    private static CheckpointLogInfo readCheckpoint(Logger logger, PageCache pc) {
+        Page pageOne = null;
+        try {
+            pageOne = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        long lsn;
+        try {
+            lsn = PageOne.getCheckpointLsn(pageOne);
+        } finally {
+            pageOne.release();
+        }
+        if(lsn == 0) {
+            return null;
+        }
+        /*记录的是写检查点日志之前的LSN  中间可能夹着其他日志*/
+        LogReader reader = logger.reader(lsn);
+        while(true) {
+            SubArray log = reader.next();
+            if(log == null) {
+                return null;
+            }
+            if(isCheckpointLog(log)) {
+                return parseCheckpointLog(log);
+            }
+        }
+    }
+
+    /*第一页中记录的检查点页数*/
+    private static int checkpointPages(PageCache pc) {
+        Page pageOne = null;
+        try {
+            pageOne = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            return PageOne.getCheckpointPages(pageOne);
+        } finally {
+            pageOne.release();
+        }
     }
 
     /*
-    * TransactionManager:维护了事务的状态
-    * Logger:操作日志文件
     * PageCache:页面缓存管理
     * 日志重做操作
     * */
-    private static void redoTranscations(TransactionManager tm,
-                                         Logger logger,
-                                         PageCache pc){
-        logger.rewind();
-        while(true){
-            byte[] log = logger.next();
-            if(log == null)break;
-            if(isInsertLog(log)){
-                InsertLogInfo iLog = parseInsertLog(log);
-                long xId = iLog.xid;
-                if(!tm.isActive(xId)){
-                    doInsertLog(pc, log, REDO);
-                }
-            }else{
-                UpdateLogInfo xId = parseUpdateLog(log);
-            }
+    static void redoLog(PageCache pc, SubArray log){
+        if(isInsertLog(log)){
+            doInsertLog(pc, log, REDO);
+        }else{
+            doUpdateLog(pc, log, REDO);
         }
     }
 
     /* 根据回滚操作 */
     private static void undoTranscations(TransactionManager tm,
-                                         Logger logger,
-                                         PageCache pc){
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        /*遍历日志*/
-        logger.rewind();
-        while(true){
-            byte[] log = logger.next();
-            if(log == null)break;
-            if(isInsertLog(log)){
-                InsertLogInfo iLog = parseInsertLog(log);
-                long xid = iLog.xid;
-                if(tm.isActive(xid)){
-                    logCache.put(xid, new ArrayList<>());
-                }
-                logCache.get(xid).add(log);
-            }else{
-                UpdateLogInfo uLod = parseUpdateLog(log);
-                long xid = uLod.xid;
-                if(tm.isActive(xid)){
-                    logCache.put(xid, new ArrayList<>());
-                }
-                logCache.get(xid).add(log);
-            }
-        }
+                                         PageCache pc,
+                                         Map<Long, List<byte[]>> logCache,
+                                         RecoveryStats stats){
         /*
         * 遍历键值对中的集合
         * 逆序处理日志
@@ -176,7 +303,8 @@ public class Recover {
             List<byte[]> logs = entry.getValue();
             /*回滚日志应该逆序处理*/
             for(int i = logs.size() - 1; i >= 0; i--){
-                byte[] log = logs.get(i);
+                byte[] raw = logs.get(i);
+                SubArray log = new SubArray(raw, 0, raw.length);
                 if(isInsertLog(log)){
                     doInsertLog(pc, log, UNDO);
                 }else{
@@ -185,27 +313,60 @@ public class Recover {
             }
             /*取消事务 也就是事务执行失败回滚后的标记操作*/
             tm.abort(entry.getKey());
+            stats.addUndoRecords(logs.size());
+            stats.addUndoneTransaction();
         }
     }
 
     /*判断日志类型是否为插入*/
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isInsertLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_INSERT;
+    }
+
+    private static boolean isCheckpointLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_CHECKPOINT;
+    }
+
+    /*插入日志和更新日志的XID在同一个位置*/
+    private static long parseXid(SubArray log) {
+        return Parser.parseLong(log.raw, log.start + OF_XID);
+    }
+
+    /*日志操作的页号*/
+    private static int parsePageNumber(SubArray log) {
+        if(isInsertLog(log)) {
+            return Parser.parseInt(log.raw, log.start + OF_INSERT_PGNO);
+        }
+        return (int) (Parser.parseLong(log.raw, log.start + OF_UPDATE_UID) >>> 32);
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(SubArray log) {
+        CheckpointLogInfo cLog = new CheckpointLogInfo();
+        cLog.redoLsn = Parser.parseLong(log.raw, log.start + OF_CKPT_REDO);
+        int n = (log.end - log.start - OF_CKPT_XIDS) / 16;
+        cLog.xids = new long[n];
+        cLog.firstLsns = new long[n];
+        for(int i = 0; i < n; i++) {
+            int off = log.start + OF_CKPT_XIDS + i * 16;
+            cLog.xids[i] = Parser.parseLong(log.raw, off);
+            cLog.firstLsns[i] = Parser.parseLong(log.raw, off + 8);
+        }
+        return cLog;
     }
 
-    /*解析byte[]为插入日志*/
-    private static InsertLogInfo parseInsertLog(byte[] log){
+    /*解析插入日志  raw是日志中的视图*/
+    private static InsertLogInfo parseInsertLog(SubArray log){
         InsertLogInfo iLog = new InsertLogInfo();
-        iLog.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        iLog.pageNumber = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        iLog.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        iLog.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        iLog.xid = Parser.parseLong(log.raw, log.start + OF_XID);
+        iLog.pageNumber = Parser.parseInt(log.raw, log.start + OF_INSERT_PGNO);
+        iLog.offset = Parser.parseShort(log.raw, log.start + OF_INSERT_OFFSET);
+        iLog.raw = new SubArray(log.raw, log.start + OF_INSERT_RAW, log.end);
         return iLog;
     }
 
     /*对插入日志进行的一个重做或者回滚的操作*/
     private static void doInsertLog(PageCache pc,
-                                    byte[] log,
+                                    SubArray log,
                                     int flag){
         InsertLogInfo iLog = parseInsertLog(log);
         Page page = null;
@@ -225,50 +386,43 @@ public class Recover {
         }
     }
 
-    /*将字节数组解析为 UpdateLogInfo*/
-    private static UpdateLogInfo parseUpdateLog(byte[] log){
+    /*解析更新日志和差量更新日志  oldRaw和newRaw是日志中的视图*/
+    private static UpdateLogInfo parseUpdateLog(SubArray log){
         UpdateLogInfo uLog = new UpdateLogInfo();
-        uLog.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        uLog.xid = Parser.parseLong(log.raw, log.start + OF_XID);
         /*
         * uId: 由偏移量 + pageNumber组成
         *       偏移量为低位的16位
         *       pageNumber位高位的四个字节  --- 也就是32位
         * */
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        long uid = Parser.parseLong(log.raw, log.start + OF_UPDATE_UID);
         uLog.offset = (short)(uid & ((1L << 16) - 1));
         /*无符号位右移*/
         uid >>>= 32;
         uLog.pageNumber = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        uLog.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        uLog.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        int rawStart = log.start + OF_UPDATE_RAW;
+        if(log.raw[log.start] == LOG_TYPE_DELTA) {
+            uLog.offset += Parser.parseShort(log.raw, log.start + OF_DELTA_OFFSET);
+            rawStart = log.start + OF_DELTA_RAW;
+        }
+        int length = (log.end - rawStart) / 2;
+        uLog.oldRaw = new SubArray(log.raw, rawStart, rawStart + length);
+        uLog.newRaw = new SubArray(log.raw, rawStart + length, rawStart + length * 2);
         return uLog;
     }
 
     /*updateLog 的回滚和重做操作*/
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag ){
-        int pageNumber;
-        short offset;
-        byte[] raw;
-        if(flag == REDO){
-            UpdateLogInfo uLog = parseUpdateLog(log);
-            pageNumber = uLog.pageNumber;
-            offset = uLog.offset;
-            raw = uLog.newRaw;
-        }else{
-            UpdateLogInfo uLog = parseUpdateLog(log);
-            pageNumber = uLog.pageNumber;
-            offset = uLog.offset;
-            raw = uLog.oldRaw;
-        }
+    private static void doUpdateLog(PageCache pc, SubArray log, int flag ){
+        UpdateLogInfo uLog = parseUpdateLog(log);
+        SubArray raw = flag == REDO ? uLog.newRaw : uLog.oldRaw;
         Page page = null;
         try {
-            page = pc.getPage(pageNumber);
+            page = pc.getPage(uLog.pageNumber);
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(page, raw, offset);
+            PageX.recoverUpdate(page, raw, uLog.offset);
         } finally {
             page.release();
         }
@@ -283,14 +437,56 @@ public class Recover {
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
-    /*更新日志的生成*/
+    /*检查点日志的生成  xids[i]为检查点时的活跃事务，firstLsns[i]为它第一条日志之前的LSN*/
+    public static byte[] checkpointLog(long redoLsn, long[] xids, long[] firstLsns) {
+        byte[] log = new byte[OF_CKPT_XIDS + xids.length * 16];
+        log[OF_TYPE] = LOG_TYPE_CHECKPOINT;
+        System.arraycopy(Parser.long2Byte(redoLsn), 0, log, OF_CKPT_REDO, 8);
+        for(int i = 0; i < xids.length; i++) {
+            int off = OF_CKPT_XIDS + i * 16;
+            System.arraycopy(Parser.long2Byte(xids[i]), 0, log, off, 8);
+            System.arraycopy(Parser.long2Byte(firstLsns[i]), 0, log, off + 8, 8);
+        }
+        return log;
+    }
+
+    /*
+    * 更新日志的生成
+    * 只有一段字节发生了变化时生成差量更新日志，否则记录整个DataItem的前后像
+    * */
     public static byte[] updateLog(long xid, DataItem dataItem) {
+        byte[] oldRaw = dataItem.getOldRaw();
+        SubArray raw = dataItem.getRaw();
+        /*找到第一个和最后一个发生变化的字节*/
+        int length = oldRaw.length;
+        int first = 0;
+        while(first < length && oldRaw[first] == raw.raw[raw.start + first]) {
+            first++;
+        }
+        int last = length;
+        while(last > first && oldRaw[last - 1] == raw.raw[raw.start + last - 1]) {
+            last--;
+        }
+        int changed = last - first;
+        if(OF_DELTA_RAW + changed * 2 < OF_UPDATE_RAW + length * 2) {
+            return deltaLog(xid, dataItem.getUid(), (short) first, oldRaw, raw, changed);
+        }
         byte[] logType = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(dataItem.getUid());
-        byte[] oldRaw = dataItem.getOldRaw();
-        SubArray raw = dataItem.getRaw();
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
     }
+
+    /*差量更新日志  记录[offset, offset + length)这段字节的前后像*/
+    private static byte[] deltaLog(long xid, long uid, short offset, byte[] oldRaw, SubArray raw, int length) {
+        byte[] log = new byte[OF_DELTA_RAW + length * 2];
+        log[OF_TYPE] = LOG_TYPE_DELTA;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.long2Byte(uid), 0, log, OF_UPDATE_UID, 8);
+        System.arraycopy(Parser.short2Byte(offset), 0, log, OF_DELTA_OFFSET, 2);
+        System.arraycopy(oldRaw, offset, log, OF_DELTA_RAW, length);
+        System.arraycopy(raw.raw, raw.start + offset, log, OF_DELTA_RAW + length, length);
+        return log;
+    }
 }
@@ -0,0 +1,75 @@
+package cuit.ljzhang.jydb.backend.dm;
+
+/**
+ * @ClassName RecoveryListener
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 20:30
+ * @Version 1.0
+ * 恢复过程的监听：
+ *      --- 恢复开始、每个阶段开始和结束、扫描进度、恢复结束时回调
+ *      --- 回调都在执行恢复的线程中进行，传入的统计是同一个对象，回调结束后还会继续变化
+ *      --- 默认实现什么都不做，CONSOLE把恢复过程打印到控制台
+ */
+public interface RecoveryListener {
+
+    /*恢复的阶段  按顺序执行*/
+    enum Phase {
+        /*读取第一页记录的检查点日志，确定重做和回滚的起点*/
+        CHECKPOINT,
+        /*扫描日志，重做已完成的事务  等待重做线程结束也算在内*/
+        REDO,
+        /*截断最大操作页之后的页面*/
+        TRUNCATE,
+        /*回滚崩溃时活跃的事务*/
+        UNDO
+    }
+
+    default void onStart(RecoveryStats stats) {}
+
+    default void onPhaseStart(Phase phase, RecoveryStats stats) {}
+
+    default void onPhaseEnd(Phase phase, RecoveryStats stats) {}
+
+    /*扫描日志时每PROGRESS_INTERVAL条日志回调一次*/
+    default void onProgress(RecoveryStats stats) {}
+
+    default void onFinish(RecoveryStats stats) {}
+
+    /*打印恢复过程*/
+    RecoveryListener CONSOLE = new RecoveryListener() {
+        @Override
+        public void onStart(RecoveryStats stats) {
+            System.out.println("recover...");
+        }
+
+        @Override
+        public void onPhaseEnd(Phase phase, RecoveryStats stats) {
+            switch(phase) {
+                case CHECKPOINT:
+                    if(stats.isCheckpointFound()) {
+                        System.out.println("Checkpoint found, redo from " + stats.getRedoLsn() + ", undo from " + stats.getUndoLsn() + ".");
+                    }
+                    break;
+                case REDO:
+                    System.out.println("Redo Transactions Over.");
+                    break;
+                case TRUNCATE:
+                    System.out.println("Truncate to " + stats.getPageNumbers() + " pages.");
+                    break;
+                case UNDO:
+                    System.out.println("Undo Transactions Over.");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onFinish(RecoveryStats stats) {
+            System.out.println("Recovery Over. " + stats);
+        }
+    };
+
+    RecoveryListener NONE = new RecoveryListener() {};
+}
@@ -0,0 +1,146 @@
+package cuit.ljzhang.jydb.backend.dm;
+
+import cuit.ljzhang.jydb.backend.dm.RecoveryListener.Phase;
+
+/**
+ * @ClassName RecoveryStats
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 20:30
+ * @Version 1.0
+ * 一次恢复的统计：
+ *      --- 扫描的日志条数、从日志文件读入的字节数
+ *      --- 重做和回滚的日志条数、回滚的事务数、重做和回滚涉及的页面数
+ *      --- 每个阶段的耗时  纳秒
+ *      --- 只由执行恢复的线程修改
+ */
+public class RecoveryStats {
+
+    private boolean checkpointFound;
+    private long redoLsn;
+    private long undoLsn;
+
+    private long recordsScanned;
+    private long bytesRead;
+    private long redoRecords;
+    private long undoRecords;
+    private long undoneTransactions;
+    private long pagesTouched;
+    private int pageNumbers;
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long totalNanos;
+
+    public boolean isCheckpointFound() {
+        return checkpointFound;
+    }
+
+    /*重做的起点  没有检查点时为0*/
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    /*扫描日志的起点*/
+    public long getUndoLsn() {
+        return undoLsn;
+    }
+
+    /*扫描的日志条数  包括检查点日志*/
+    public long getRecordsScanned() {
+        return recordsScanned;
+    }
+
+    /*从日志文件读入的字节数*/
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getRedoRecords() {
+        return redoRecords;
+    }
+
+    public long getUndoRecords() {
+        return undoRecords;
+    }
+
+    public long getUndoneTransactions() {
+        return undoneTransactions;
+    }
+
+    /*重做或回滚修改过的不同页面数*/
+    public long getPagesTouched() {
+        return pagesTouched;
+    }
+
+    /*截断之后数据文件的页数*/
+    public int getPageNumbers() {
+        return pageNumbers;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    void setCheckpoint(boolean found, long redoLsn, long undoLsn) {
+        this.checkpointFound = found;
+        this.redoLsn = redoLsn;
+        this.undoLsn = undoLsn;
+    }
+
+    void addRecordScanned() {
+        recordsScanned++;
+    }
+
+    void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    void addRedoRecord() {
+        redoRecords++;
+    }
+
+    void addUndoRecords(long n) {
+        undoRecords += n;
+    }
+
+    void addUndoneTransaction() {
+        undoneTransactions++;
+    }
+
+    void setPagesTouched(long pagesTouched) {
+        this.pagesTouched = pagesTouched;
+    }
+
+    void setPageNumbers(int pageNumbers) {
+        this.pageNumbers = pageNumbers;
+    }
+
+    void setPhaseNanos(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] = nanos;
+    }
+
+    void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("records=").append(recordsScanned)
+          .append(" bytes=").append(bytesRead)
+          .append(" redo=").append(redoRecords)
+          .append(" undo=").append(undoRecords)
+          .append(" undoneTxns=").append(undoneTransactions)
+          .append(" pages=").append(pagesTouched);
+        for(Phase phase : Phase.values()) {
+            sb.append(' ').append(phase.name().toLowerCase()).append('=')
+              .append(getPhaseNanos(phase) / 1_000_000).append("ms");
+        }
+        sb.append(" total=").append(totalNanos / 1_000_000).append("ms");
+        return sb.toString();
+    }
+}
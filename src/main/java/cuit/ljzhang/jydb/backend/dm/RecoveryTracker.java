@@ -0,0 +1,141 @@
+package cuit.ljzhang.jydb.backend.dm;
+
+import cuit.ljzhang.jydb.backend.dm.RecoveryListener.Phase;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @ClassName RecoveryTracker
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 20:40
+ * @Version 1.0
+ * 记录恢复过程：
+ *      --- 统计计时写入RecoveryStats，并回调RecoveryListener
+ *      --- 同时提交JFR事件：每个阶段一个jydb.RecoveryPhase，整个恢复一个jydb.Recovery
+ *          没有开启JFR记录时事件不会被记录，开销可以忽略
+ */
+class RecoveryTracker {
+
+    /*扫描日志时回调进度的间隔  条*/
+    static final int PROGRESS_INTERVAL = 100_000;
+
+    private final RecoveryListener listener;
+    private final RecoveryStats stats;
+
+    private final RecoveryEvent event;
+    private RecoveryPhaseEvent phaseEvent;
+    private long start;
+    private long phaseStart;
+
+    RecoveryTracker(RecoveryListener listener) {
+        this.listener = listener;
+        this.stats = new RecoveryStats();
+        this.event = new RecoveryEvent();
+    }
+
+    RecoveryStats stats() {
+        return stats;
+    }
+
+    void start() {
+        event.begin();
+        start = System.nanoTime();
+        listener.onStart(stats);
+    }
+
+    void beginPhase(Phase phase) {
+        phaseEvent = new RecoveryPhaseEvent();
+        phaseEvent.begin();
+        phaseStart = System.nanoTime();
+        listener.onPhaseStart(phase, stats);
+    }
+
+    void endPhase(Phase phase) {
+        stats.setPhaseNanos(phase, System.nanoTime() - phaseStart);
+        phaseEvent.end();
+        if(phaseEvent.shouldCommit()) {
+            phaseEvent.phase = phase.name();
+            phaseEvent.recordsScanned = stats.getRecordsScanned();
+            phaseEvent.bytesRead = stats.getBytesRead();
+            phaseEvent.redoRecords = stats.getRedoRecords();
+            phaseEvent.undoRecords = stats.getUndoRecords();
+            phaseEvent.commit();
+        }
+        listener.onPhaseEnd(phase, stats);
+    }
+
+    /*扫描了一条日志*/
+    void scanned() {
+        stats.addRecordScanned();
+        if(stats.getRecordsScanned() % PROGRESS_INTERVAL == 0) {
+            listener.onProgress(stats);
+        }
+    }
+
+    void finish() {
+        stats.setTotalNanos(System.nanoTime() - start);
+        event.end();
+        if(event.shouldCommit()) {
+            event.checkpointFound = stats.isCheckpointFound();
+            event.redoLsn = stats.getRedoLsn();
+            event.undoLsn = stats.getUndoLsn();
+            event.recordsScanned = stats.getRecordsScanned();
+            event.bytesRead = stats.getBytesRead();
+            event.redoRecords = stats.getRedoRecords();
+            event.undoRecords = stats.getUndoRecords();
+            event.undoneTransactions = stats.getUndoneTransactions();
+            event.pagesTouched = stats.getPagesTouched();
+            event.commit();
+        }
+        listener.onFinish(stats);
+    }
+
+    @Name("jydb.Recovery")
+    @Label("JYDB Recovery")
+    @Category({"JYDB", "Recovery"})
+    @Description("打开数据库时的一次日志恢复")
+    static class RecoveryEvent extends Event {
+        @Label("Checkpoint Found")
+        boolean checkpointFound;
+        @Label("Redo LSN")
+        long redoLsn;
+        @Label("Undo LSN")
+        long undoLsn;
+        @Label("Records Scanned")
+        long recordsScanned;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Redo Records")
+        long redoRecords;
+        @Label("Undo Records")
+        long undoRecords;
+        @Label("Undone Transactions")
+        long undoneTransactions;
+        @Label("Pages Touched")
+        long pagesTouched;
+    }
+
+    @Name("jydb.RecoveryPhase")
+    @Label("JYDB Recovery Phase")
+    @Category({"JYDB", "Recovery"})
+    @Description("日志恢复的一个阶段  统计是阶段结束时的累计值")
+    static class RecoveryPhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Records Scanned")
+        long recordsScanned;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Redo Records")
+        long redoRecords;
+        @Label("Undo Records")
+        long undoRecords;
+    }
+}
@@ -60,4 +60,8 @@ public interface DataItem {
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    public static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte)1;
+    }
 }
@@ -60,24 +60,35 @@ public class DataItemImpl implements DataItem {
     *       撤销修改需要调用unBefore
     *       修改完成需要调用after
     * 主要为了保证前相数据，并且执行日志，保证原子性
+    * before到after/unBefore之间持有页面锁：
+    *   页面上的修改先于日志发生，后台刷盘线程不能在日志记录之前把修改写回
     * */
     @Override
     public void before() {
         rwLock.writeLock().lock();
+        page.lock();
         page.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw, raw.start, oldRaw.length);
+        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        page.setDirty(true);
+        page.unlock();
         rwLock.writeLock().unlock();
     }
 
-    /*修改操作 记录日志*/
+    /*
+    * 修改操作 记录日志
+    * 修改完成后再标记一次脏页：后台刷盘可能在before之后已经清掉了脏标记
+    * */
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid, this);
+        long lsn = dm.logDataItem(xid, this);
+        page.setLsn(lsn);
+        page.setDirty(true);
+        page.unlock();
         rwLock.writeLock().unlock();
     }
 
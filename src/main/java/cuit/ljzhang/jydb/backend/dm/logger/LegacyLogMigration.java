@@ -0,0 +1,95 @@
+package cuit.ljzhang.jydb.backend.dm.logger;
+
+import cuit.ljzhang.jydb.backend.utils.FileUtil;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * @ClassName LegacyLogMigration
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 16:20
+ * @Version 1.0
+ * 旧格式日志的转换：
+ *      旧格式 [xCheckSum][Log1]...[LogN][BadTail]
+ *          --- 日志为[Size][Checksum][Data]，Checksum是对Data逐字节乘SEED累加
+ *      --- 逐条读取旧日志，用旧的校验和检查，遇到第一条坏日志就停止(BadTail)
+ *      --- 不检查xCheckSum：旧格式先写日志再回写文件头，崩溃在两者之间时
+ *          xCheckSum对不上但日志本身是完整的
+ *      --- 完整的日志按新格式写入临时文件，落盘后原子替换原文件
+ *          转换中途崩溃时原文件不受影响，下次打开重新转换
+ */
+final class LegacyLogMigration {
+
+    /*旧格式的校验种子*/
+    private static final int SEED = 13331;
+
+    /*旧格式文件头 xCheckSum的长度*/
+    private static final int LEGACY_OF_LOG = 4;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private LegacyLogMigration() {}
+
+    /*文件头不是新格式时转换日志文件*/
+    static void migrateIfNeeded(File f) {
+        if(f.length() < LEGACY_OF_LOG) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            if(LoggerImpl.hasMagic(raf.getChannel())) {
+                return;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        migrate(f);
+    }
+
+    private static void migrate(File f) {
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+             FileOutputStream fos = new FileOutputStream(tmp);
+             BufferedOutputStream out = new BufferedOutputStream(fos, 1 << 16)) {
+            in.skipBytes(LEGACY_OF_LOG);
+            out.write(LoggerImpl.MAGIC);
+            long remaining = f.length() - LEGACY_OF_LOG;
+            while(remaining >= LoggerImpl.OF_DATA) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if(size < 0 || size > remaining - LoggerImpl.OF_DATA) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                in.readFully(data);
+                if(calLegacyChecksum(data) != checksum) {
+                    break;
+                }
+                out.write(LoggerImpl.wrapLog(data));
+                remaining -= LoggerImpl.OF_DATA + size;
+            }
+            out.flush();
+            fos.getChannel().force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        FileUtil.replace(tmp, f);
+    }
+
+    /*旧格式单条日志的校验和*/
+    private static int calLegacyChecksum(byte[] data) {
+        int xCheck = 0;
+        for(byte b : data) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+}
@@ -0,0 +1,132 @@
+package cuit.ljzhang.jydb.backend.dm.logger;
+
+import cuit.ljzhang.jydb.backend.common.SubArray;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+import cuit.ljzhang.jydb.backend.utils.Parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @ClassName LogReader
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 17:40
+ * @Version 1.0
+ * 顺序读取日志：
+ *      --- 按块(CHUNK_SIZE)读取日志段，一次系统调用读入很多条日志
+ *      --- next()返回块中Data字段的视图，不拷贝，下一次调用next()之后视图失效
+ *          需要保留日志内容时调用者自己拷贝
+ *      --- 超过块大小的日志单独扩大块
+ *      --- 遇到校验不通过的日志认为当前日志段结束，继续读下一个日志段
+ *      --- 创建时记下日志段和它们的末尾，之后追加的日志读不到
+ *      --- 只能在一个线程中使用，读取期间日志段不能被回收
+ */
+public class LogReader {
+
+    /*一次读入的大小 1M*/
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private List<LogSegment> segments;
+
+    /*每个日志段末尾的LSN*/
+    private long[] ends;
+
+    /*当前读取的日志段下标 和 读取位置的LSN*/
+    private int current;
+    private long position;
+
+    /*读入的块  缓存了LSN在[chunkStart, chunkStart + chunkLen)之间的内容*/
+    private byte[] chunk;
+    private long chunkStart;
+    private int chunkLen;
+
+    /*从文件读入的字节数*/
+    private long bytesRead;
+
+    LogReader(List<LogSegment> segments, long[] ends, long lsn) {
+        this.segments = segments;
+        this.ends = ends;
+        this.chunk = new byte[CHUNK_SIZE];
+        int i = segments.size() - 1;
+        while(i > 0 && segments.get(i).base > lsn) {
+            i--;
+        }
+        current = i;
+        position = Math.max(lsn, segments.get(i).base + LoggerImpl.OF_LOG);
+    }
+
+    /*读取位置  也就是上一条返回的日志的LSN*/
+    public long position() {
+        return position;
+    }
+
+    /*目前为止从文件读入的字节数*/
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /*下一条日志的Data字段  没有日志时返回null*/
+    public SubArray next() {
+        while(true) {
+            SubArray log = nextInSegment();
+            if(log != null) {
+                return log;
+            }
+            /*当前日志段读完 进入下一个日志段*/
+            if(current + 1 >= segments.size()) {
+                return null;
+            }
+            current++;
+            position = segments.get(current).base + LoggerImpl.OF_LOG;
+        }
+    }
+
+    private SubArray nextInSegment() {
+        long end = ends[current];
+        /*当前指针的位置 + 接下来一条日志的数据偏移 > 日志段的末尾 ： 没有日志记录了*/
+        if(position + LoggerImpl.OF_DATA > end) {
+            return null;
+        }
+        int off = fill(position, LoggerImpl.OF_DATA, end);
+        int size = Parser.parseInt(chunk, off + LoggerImpl.OF_SIZE);
+        /*检验一下解析出的size字段描述的data字段是否超过了日志段的末尾*/
+        if(size < 0 || position + LoggerImpl.OF_DATA + size > end) {
+            return null;
+        }
+        off = fill(position, LoggerImpl.OF_DATA + size, end);
+        /*对读取的日志进行校验*/
+        int checksum = Parser.parseInt(chunk, off + LoggerImpl.OF_CHECKSUM);
+        if(LoggerImpl.calChecksum(chunk, off, size) != checksum) {
+            return null;
+        }
+        position += LoggerImpl.OF_DATA + size;
+        return new SubArray(chunk, off + LoggerImpl.OF_DATA, off + LoggerImpl.OF_DATA + size);
+    }
+
+    /*保证[lsn, lsn + len)在块中  返回lsn在块中的下标*/
+    private int fill(long lsn, int len, long end) {
+        if(lsn >= chunkStart && lsn + len <= chunkStart + chunkLen) {
+            return (int) (lsn - chunkStart);
+        }
+        if(len > chunk.length) {
+            chunk = new byte[len];
+        }
+        LogSegment seg = segments.get(current);
+        ByteBuffer buf = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, end - lsn));
+        try {
+            while(buf.hasRemaining()) {
+                if(seg.fc.read(buf, lsn - seg.base + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        chunkStart = lsn;
+        chunkLen = buf.position();
+        bytesRead += chunkLen;
+        return 0;
+    }
+}
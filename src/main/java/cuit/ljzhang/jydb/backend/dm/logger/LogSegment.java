@@ -0,0 +1,123 @@
+package cuit.ljzhang.jydb.backend.dm.logger;
+
+import cuit.ljzhang.jydb.backend.utils.FileUtil;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static cuit.ljzhang.jydb.common.Error.FileCannotRWException;
+import static cuit.ljzhang.jydb.common.Error.FileExistsException;
+
+/**
+ * @ClassName LogSegment
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 16:55
+ * @Version 1.0
+ * 日志段文件：
+ *      --- 文件名为 数据库路径 + .log. + 16位十六进制的base
+ *      --- base：文件偏移0对应的LSN，文件中偏移x处的LSN为base + x
+ *      --- 下一个日志段的base等于上一个日志段的base + 文件长度，所有日志段拼起来是一段连续的LSN
+ *      --- 每个日志段都以Magic开头，日志不跨越日志段
+ */
+final class LogSegment {
+
+    private static final String SEGMENT_INFIX = ".";
+    private static final int BASE_DIGITS = 16;
+
+    final long base;
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel fc;
+
+    private LogSegment(long base, File file) {
+        this.base = base;
+        this.file = file;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        this.raf = raf;
+        this.fc = raf.getChannel();
+    }
+
+    /*日志段的文件*/
+    static File fileOf(String path, long base) {
+        return new File(path + LoggerImpl.LOG_SUFFIX + SEGMENT_INFIX + String.format("%0" + BASE_DIGITS + "x", base));
+    }
+
+    /*创建一个新的空日志段  文件已存在时报错*/
+    static LogSegment create(String path, long base) {
+        File f = fileOf(path, base);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        /*新的日志段在目录中落盘  之后写入它的日志才不会因为断电丢失*/
+        FileUtil.forceDirectory(f);
+        return new LogSegment(base, f);
+    }
+
+    static LogSegment open(String path, long base) {
+        return new LogSegment(base, fileOf(path, base));
+    }
+
+    /*找到数据库路径下所有日志段的base  按从小到大排序*/
+    static List<Long> list(String path) {
+        File f = new File(path).getAbsoluteFile();
+        String prefix = f.getName() + LoggerImpl.LOG_SUFFIX + SEGMENT_INFIX;
+        List<Long> bases = new ArrayList<>();
+        String[] names = f.getParentFile().list();
+        if(names == null) {
+            return bases;
+        }
+        for(String name : names) {
+            if(!name.startsWith(prefix) || name.length() != prefix.length() + BASE_DIGITS) {
+                continue;
+            }
+            try {
+                bases.add(Long.parseUnsignedLong(name.substring(prefix.length()), 16));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        bases.sort(Long::compare);
+        return bases;
+    }
+
+    long length() {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    void close() {
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /*回收日志段 --- 关闭并删除文件*/
+    void delete() {
+        close();
+        if(!file.delete()) {
+            Panic.panic(FileCannotRWException);
+        }
+    }
+}
@@ -1,14 +1,15 @@
 package cuit.ljzhang.jydb.backend.dm.logger;
 
+import cuit.ljzhang.jydb.backend.utils.FileUtil;
 import cuit.ljzhang.jydb.backend.utils.Panic;
-import cuit.ljzhang.jydb.backend.utils.Parser;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static cuit.ljzhang.jydb.common.Error.*;
 
@@ -19,11 +20,20 @@ import static cuit.ljzhang.jydb.common.Error.*;
  * @Date 2023/7/27 14:56
  * @Version 1.0
  * 日志文件操作接口
+ *      --- LSN：一条日志结束位置在日志中的偏移，单调递增
+ *      --- log只追加到内存缓冲区，flush(lsn)之后lsn之前的日志才保证落盘
+ *      --- 日志按SEGMENT_SIZE切分成多个日志段文件，检查点之后用reclaim回收旧的日志段
  */
 public interface Logger {
 
-    /*记录日志*/
-    void log(byte[] data);
+    /*日志段大小 16M  日志段写满后轮换到新的日志段*/
+    public static final int SEGMENT_SIZE = 16 << 20;
+
+    /*记录日志  返回这条日志的LSN*/
+    long log(byte[] data);
+
+    /*保证lsn之前的日志都已经落盘  多个线程的flush会合并成一次写盘*/
+    void flush(long lsn);
 
     /*读取日志，迭代器模式*/
     byte[] next();
@@ -31,67 +41,88 @@ public interface Logger {
     /*移动position到日志记录开头*/
     void rewind();
 
+    /*移动position到lsn处  lsn需要是一条日志的边界(某条日志的LSN或者currentLsn)  已经被回收时从第一个日志段开始*/
+    void rewind(long lsn);
+
+    /*从lsn开始顺序读取日志的读取器  按块读入，返回日志的视图  恢复时使用*/
+    LogReader reader(long lsn);
+
     /*截断到正常日志末尾*/
     void truncate(long x) throws Exception;
 
+    /*已经追加的日志末尾的LSN  之后追加的日志LSN都比它大*/
+    long currentLsn();
+
+    /*删除所有日志都在lsn之前的日志段  正在追加和还没有落盘的日志段不会被删除*/
+    void reclaim(long lsn);
+
     /*关闭日志  主要是两个流的关闭*/
     void close();
 
-    /* 创建日志文件  */
     static Logger create(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
+        return create(path, SEGMENT_SIZE);
+    }
+
+    /* 创建日志  第一个日志段的base为0  */
+    static Logger create(String path, int segmentSize) {
+        if(new File(path + LoggerImpl.LOG_SUFFIX).exists() || !LogSegment.list(path).isEmpty()) {
+            Panic.panic(FileExistsException);
         }
-        if(!f.canRead() || !f.canWrite()) {
+        LogSegment seg = LogSegment.create(path, 0);
+        if(!seg.file.canRead() || !seg.file.canWrite()) {
             Panic.panic(FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
+        /* 写入文件头 */
         try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        /* 初始化校验和 */
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
+            LoggerImpl.writeMagic(seg.fc);
+            seg.fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        return new LoggerImpl(raf, fc, 0);
+        return new LoggerImpl(path, segmentSize, Collections.singletonList(seg));
     }
 
-    /*打开日志文件  校验日志和参数*/
     public static Logger open(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(FileCannotRWException);
+        return open(path, SEGMENT_SIZE);
+    }
+
+    /*
+    * 打开日志  校验日志和参数
+    * 只有一个.log文件的旧日志：转换成新格式之后改名为base为0的日志段
+    * */
+    public static Logger open(String path, int segmentSize) {
+        List<Long> bases = LogSegment.list(path);
+        if(bases.isEmpty()) {
+            File f = new File(path + LoggerImpl.LOG_SUFFIX);
+            if(!f.exists()) {
+                Panic.panic(FileNotExistsException);
+            }
+            if(!f.canRead() || !f.canWrite()) {
+                Panic.panic(FileCannotRWException);
+            }
+            /*旧格式的日志先转换成新格式*/
+            LegacyLogMigration.migrateIfNeeded(f);
+            try {
+                Files.move(f.toPath(), LogSegment.fileOf(path, 0).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            /*改名落盘之后才能追加新格式的日志  否则崩溃后可能找不到日志段*/
+            FileUtil.forceDirectory(f);
+            bases = LogSegment.list(path);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        List<LogSegment> segments = new ArrayList<>();
+        for(long base : bases) {
+            LogSegment seg = LogSegment.open(path, base);
+            if(!seg.file.canRead() || !seg.file.canWrite()) {
+                Panic.panic(FileCannotRWException);
+            }
+            segments.add(seg);
         }
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        /*获取日志文件大小 初始化参数和校验和  校验和的检验*/
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, segments);
+        /*检查文件头  截断最后一个日志段的BadTail*/
         lg.init();
         return lg;
     }
@@ -1,17 +1,21 @@
 package cuit.ljzhang.jydb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
+import cuit.ljzhang.jydb.backend.common.SubArray;
 import cuit.ljzhang.jydb.backend.utils.Panic;
 import cuit.ljzhang.jydb.backend.utils.Parser;
 
 import javax.swing.text.BadLocationException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 import static cuit.ljzhang.jydb.common.Error.BadLogFileException;
 
@@ -21,212 +25,400 @@ import static cuit.ljzhang.jydb.common.Error.BadLogFileException;
  * @Author ljzhang
  * @Date 2023/7/27 14:56
  * @Version 1.0
- * 日志二进制文件 ：
- *      [xCheckSum][Log1][Log2]...[LogN][BadTail]
- *      xCheckSum:对后续所有日志计算的校验和
+ * 日志由多个日志段文件组成，见LogSegment ：
+ *      [Magic][Log1][Log2]...[LogN]    ...    [Magic][LogN+1]...[LogM][BadTail]
+ *      Magic:8字节文件头，标识日志格式的版本
  *      Log:日志记录
- *      Badtail:数据库崩溃时，未来得及写入的日志数据，不一定存在
+ *      Badtail:数据库崩溃时，未来得及写入的日志数据，不一定存在，只会出现在最后一个日志段
  * 日志格式如下：
 *       [Size][Checksum][Data]
 *          ---size:四字节整数，标识Data字段字节数
-*          ---Checksum: 改条日志的校验和
+*          ---Checksum: 对Size和Data计算的CRC32C，Size被写坏时同样能发现
 *          ---Data：数据字段
+ * 每条日志各自校验，没有覆盖整个文件的校验和：
+ *      --- 打开日志时从最后一个日志段开头扫描到第一条校验不通过的日志，之后的部分就是BadTail，直接截断
+ *      --- 追加日志不需要回写文件头，刷盘只写日志本身
+ *      --- CRC32C有硬件指令支持，比逐字节乘法的校验和快得多
+ *      --- 扫描时按块读取文件，不再每条日志两次系统调用，见LogReader
+ *      --- 旧格式([xCheckSum]开头)的日志在打开时转换为新格式，见LegacyLogMigration
+ * 日志段：
+ *      --- 当前日志段放不下新的日志时，在日志缓冲区中追加新日志段的Magic，之后的日志写入新日志段
+ *      --- leader写完旧日志段并force之后才写新日志段，崩溃时只有最后一个日志段可能不完整
+ *      --- reclaim(lsn)删除所有日志都在lsn之前的日志段，磁盘占用和恢复时间只和检查点间隔有关
+ * 日志缓冲区与LSN：
+ *      --- LSN：一条日志结束位置在日志段中的偏移 + 日志段的base，单调递增
+ *      --- log()只把日志追加到内存中的日志缓冲区，返回LSN，没有系统调用
+ *      --- flush(lsn)保证lsn之前的日志都已经落盘
+ *      --- 缓冲区超过LOG_BUFFER_SIZE时，追加日志的线程顺便刷一次盘
+ * 组提交：
+ *      --- 没有刷盘在进行时，由调用flush的线程作为leader取走整个缓冲区：
+ *          一次写入所有日志，每个日志段只force一次
+ *      --- leader刷盘期间追加的日志留在新的缓冲区，由下一个leader处理
+ *      --- 其他线程等待，被唤醒后自己的LSN已经落盘，或者轮到自己当下一批的leader
  */
 public class LoggerImpl implements Logger{
-    /*校验种子*/
-    private static final int SEED = 13331;
+    /*文件头  "JYDBLOG" + 格式版本号*/
+    static final byte[] MAGIC = {'J', 'Y', 'D', 'B', 'L', 'O', 'G', 2};
 
-    private static final int OF_LOG = 4;
+    static final int OF_LOG = MAGIC.length;
 
     /*size，checksum，data的偏移字节位置*/
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_DATA = OF_CHECKSUM + 4;
 
     public static final String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile raf;
-    private FileChannel fc;
+    /*日志缓冲区大小 1M*/
+    private static final int LOG_BUFFER_SIZE = 1 << 20;
+
+    /*数据库路径  新日志段的文件名由它生成*/
+    private String path;
+
+    /*日志段写到多大时轮换*/
+    private int segmentSize;
+
+    /*所有日志段  按base从小到大  最后一个是正在追加的日志段*/
+    private List<LogSegment> segments;
+
     private Lock lock;
 
-    /*当前日志文件的记录位置*/
-    private long position;
-    /*初始化时记录， logg日志插入不更新*/
-    private long fileSize;
-    private int xChecksum;
+    /*一批日志落盘后唤醒等待的线程*/
+    private Condition durable;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.raf = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    /*日志缓冲区 --- 还没有写入文件的日志  buffer[0]对应的LSN是flushedLsn*/
+    private byte[] buffer;
+    private int buffered;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    /*leader写盘期间使用的另一个缓冲区  两个缓冲区交替使用*/
+    private byte[] spare;
+
+    /*已经追加的日志末尾 和 已经落盘的日志末尾*/
+    private long appendLsn;
+    private long flushedLsn;
+
+    /*是否有leader正在写入一个批次*/
+    private boolean flushing;
+
+    /*next()使用的读取器*/
+    private LogReader reader;
+    /*初始化时记录最后一个日志段的末尾， logg日志插入不更新*/
+    private long readLimit;
+
+    LoggerImpl(String path, int segmentSize, List<LogSegment> segments) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.segments = new ArrayList<>(segments);
         lock = new ReentrantLock();
+        durable = lock.newCondition();
+        buffer = new byte[LOG_BUFFER_SIZE];
+        this.appendLsn = this.flushedLsn = this.readLimit = lastSegment().base + OF_LOG;
+        rewind();
     }
 
-    /*获取日志文件大小 初始化参数和校验和  校验和的检验*/
+    /*
+    * 检查每个日志段的文件头  截断最后一个日志段的BadTail
+    * 最后一个日志段可能是轮换时刚创建、还没有写入文件头的空文件：
+    *   --- 直接删除，它前面的日志段才是最后一个
+    * */
     void init() {
-        long size = 0;
-        try {
-            size = raf.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+        while(true) {
+            LogSegment last = lastSegment();
+            if(last.length() >= OF_LOG && hasMagic(last.fc)) {
+                break;
+            }
+            if(segments.size() == 1) {
+                Panic.panic(BadLogFileException);
+            }
+            segments.remove(segments.size() - 1);
+            last.delete();
         }
-        if(size < 4) {
-            Panic.panic(BadLogFileException);
+        for(LogSegment seg : segments) {
+            if(!hasMagic(seg.fc)) {
+                Panic.panic(BadLogFileException);
+            }
         }
+        LogSegment last = lastSegment();
+        this.readLimit = last.base + last.length();
+        checkAndRemoveTail();
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    /*文件头是否为当前格式*/
+    static boolean hasMagic(FileChannel fc) {
+        ByteBuffer raw = ByteBuffer.allocate(OF_LOG);
         try {
-            fc.position(0);
-            fc.read(raw);
+            while(raw.hasRemaining()) {
+                if(fc.read(raw, raw.position()) < 0) {
+                    return false;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
-        checkAndRemoveTail();
+        return Arrays.equals(raw.array(), MAGIC);
     }
 
-    /*校验和*/
-    private int calChecksum(int xCheck, byte[] log){
-        for(byte b : log){
-            xCheck = xCheck * SEED + b;
+    /*写入文件头*/
+    static void writeMagic(FileChannel fc) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(MAGIC);
+        while(buf.hasRemaining()) {
+            fc.write(buf, buf.position());
         }
-        return xCheck;
     }
 
-    /*打开日志文件时：校验日志文件的校验和*/
+    /*校验和  log[off...]是一条完整的日志  覆盖Size和Data字段*/
+    static int calChecksum(byte[] log, int off, int size) {
+        CRC32C crc = new CRC32C();
+        crc.update(log, off + OF_SIZE, 4);
+        crc.update(log, off + OF_DATA, size);
+        return (int) crc.getValue();
+    }
+
+    /*打开日志文件时：扫描最后一个日志段，到第一条校验不通过的日志为止  前面的日志段都已经完整落盘*/
     private void checkAndRemoveTail(){
-        rewind();
-        int xCheck = 0;
+        LogSegment last = lastSegment();
+        LogReader tail = new LogReader(Collections.singletonList(last), new long[]{readLimit}, last.base);
         while(true){
-            byte[] log = internNext();
+            SubArray log = tail.next();
             if(log == null)break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if(xCheck != xChecksum){
-            Panic.panic(BadLogFileException);
         }
+        long position = tail.position();
         /*截断到正常日志末尾*/
         try {
             truncate(position);
         } catch (Exception e) {
             Panic.panic(e);
         }
+        readLimit = position;
+        appendLsn = flushedLsn = position;
+        rewind();
+    }
+
+    /*从lsn开始读取日志  只能读到创建时已经在文件中的日志  --- 调用时需要持有锁*/
+    private LogReader newReader(long lsn) {
+        long[] ends = new long[segments.size()];
+        for(int i = 0; i < ends.length; i++) {
+            ends[i] = i + 1 < ends.length ? segments.get(i + 1).base : readLimit;
+        }
+        return new LogReader(new ArrayList<>(segments), ends, lsn);
+    }
+
+    /*
+    * 将日志追加到日志缓冲区  返回这条日志的LSN
+    * 返回时日志不一定已经落盘，需要持久化时调用flush(lsn)
+    * */
+    @Override
+    public long log(byte[] data){
+        byte[] log = wrapLog(data);
+        lock.lock();
         try {
-            raf.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+            /*当前日志段放不下 --- 轮换到新的日志段  超过日志段大小的单条日志独占一个日志段*/
+            long used = appendLsn - lastSegment().base;
+            if(used > OF_LOG && used + log.length > segmentSize) {
+                rotate();
+            }
+            append(log);
+            long lsn = appendLsn;
+            /*缓冲区满了 --- 顺便刷一次盘*/
+            if(buffered >= LOG_BUFFER_SIZE) {
+                flushLocked(lsn);
+            }
+            return lsn;
+        } finally {
+            lock.unlock();
         }
-        rewind();
     }
 
-    /*不断从文件中读取下一条日志，并将其中的 Data 解析出来并返回 */
-    private byte[] internNext(){
-        /*当前指针的位置 + 接下来一条日志的数据偏移 >= 文件的大小 ： 没有日志记录了，返回空*/
-        if(position + OF_DATA >= fileSize){
-            return null;
+    /*
+    * 创建新的日志段  --- 调用时需要持有锁
+    * 新日志段的Magic和日志一样经过日志缓冲区，由leader写入
+    * */
+    private void rotate() {
+        segments.add(LogSegment.create(path, appendLsn));
+        append(MAGIC);
+    }
+
+    /*追加到日志缓冲区  --- 调用时需要持有锁*/
+    private void append(byte[] bytes) {
+        if(buffered + bytes.length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, buffered + bytes.length));
         }
-        /*读取日志的size*/
-        ByteBuffer buf = ByteBuffer.allocate(4);
+        System.arraycopy(bytes, 0, buffer, buffered, bytes.length);
+        buffered += bytes.length;
+        appendLsn += bytes.length;
+    }
+
+    @Override
+    public void flush(long lsn) {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            flushLocked(Math.min(lsn, appendLsn));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    * 组提交  --- 调用时需要持有锁
+    *   --- 没有leader时自己成为leader，取走整个缓冲区写盘
+    *   --- 否则等待，被唤醒后lsn已经落盘，或者轮到自己当下一批的leader
+    * */
+    private void flushLocked(long lsn) {
+        while(flushedLsn < lsn) {
+            if(flushing) {
+                durable.awaitUninterruptibly();
+                continue;
+            }
+            /*成为leader  交换缓冲区  写盘期间不持有锁，其他线程可以继续追加*/
+            flushing = true;
+            byte[] batch = buffer;
+            int size = buffered;
+            long start = flushedLsn;
+            long target = appendLsn;
+            List<LogSegment> targets = segmentsFrom(start);
+            buffer = spare != null ? spare : new byte[LOG_BUFFER_SIZE];
+            spare = null;
+            buffered = 0;
+            lock.unlock();
+            try {
+                writeBatch(batch, size, start, targets);
+            } finally {
+                lock.lock();
+                flushing = false;
+            }
+            /*扩容过的缓冲区不再复用*/
+            if(batch.length == LOG_BUFFER_SIZE) {
+                spare = batch;
+            }
+            flushedLsn = target;
+            durable.signalAll();
         }
-        int size = Parser.parseInt(buf.array());
-        /*检验一下解析出的size字段描述的data字段是否超过了文件的大小*/
-        if(position + OF_DATA + size >= fileSize){
-            return null;
+    }
+
+    /*包含lsn以及之后日志的日志段  --- 调用时需要持有锁*/
+    private List<LogSegment> segmentsFrom(long lsn) {
+        int i = segments.size() - 1;
+        while(i > 0 && segments.get(i).base > lsn) {
+            i--;
         }
-        /*读取记录*/
-        ByteBuffer data = ByteBuffer.allocate(OF_DATA + size);
+        return new ArrayList<>(segments.subList(i, segments.size()));
+    }
+
+    /*
+    * leader写入一个批次
+    * 批次按日志段切开，依次写到每个日志段末尾并force
+    * 前一个日志段落盘之后才写下一个日志段  不需要回写文件头
+    * */
+    private void writeBatch(byte[] batch, int size, long start, List<LogSegment> targets) {
+        long end = start + size;
         try {
-            fc.position(position);
-            fc.read(data);
+            for(int i = 0; i < targets.size(); i++) {
+                LogSegment seg = targets.get(i);
+                long from = Math.max(start, seg.base);
+                long to = i + 1 < targets.size() ? targets.get(i + 1).base : end;
+                if(from >= to) {
+                    continue;
+                }
+                int begin = (int) (from - start);
+                ByteBuffer buf = ByteBuffer.wrap(batch, begin, (int) (to - from));
+                while(buf.hasRemaining()) {
+                    seg.fc.write(buf, from - seg.base + buf.position() - begin);
+                }
+                seg.fc.force(false);
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        /*对读取的日志进行校验*/
-        byte[] log = data.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if(checkSum1 != checkSum2) {
-            return null;
-        }
-        position += log.length;
+    }
+
+    /*包装日志数据  [Size][Checksum][Data]*/
+    static byte[] wrapLog(byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        System.arraycopy(Parser.int2Byte(data.length), 0, log, OF_SIZE, 4);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        System.arraycopy(Parser.int2Byte(calChecksum(log, 0, data.length)), 0, log, OF_CHECKSUM, 4);
         return log;
     }
 
+    @Override
+    public long currentLsn() {
+        lock.lock();
+        try {
+            return appendLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /*
-    * 将日志写入日志文件
-    * 包裹日志数据，写入文件之后，更新校验和
-    * 更新校验和后，刷新缓冲区，保证内容吸入缓冲区
+    * 回收日志段：下一个日志段的base < lsn，说明这个日志段的所有日志都在lsn之前
+    *   --- 最后一个日志段正在追加，不回收
+    *   --- 还没有落盘的日志段不回收
+    * 删除文件在锁外进行，不阻塞追加日志
     * */
     @Override
-    public void log(byte[] data){
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public void reclaim(long lsn) {
+        List<LogSegment> reclaimed = new ArrayList<>();
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }finally {
+            while(segments.size() > 1) {
+                long end = segments.get(1).base;
+                if(end >= lsn || end > flushedLsn) {
+                    break;
+                }
+                reclaimed.add(segments.remove(0));
+            }
+        } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
+        for(LogSegment seg : reclaimed) {
+            seg.delete();
+        }
+    }
+
+    private LogSegment lastSegment() {
+        return segments.get(segments.size() - 1);
     }
 
-    /*包装日志数据*/
-    private byte[] wrapLog(byte[] data) {
-        /*计算大小和检验和字段然后拼接*/
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    @Override
+    public void rewind() {
+        rewind(0);
     }
 
-    /*更新校验和*/
-    private void updateXChecksum(byte[] log) {
-        /*计算加入当前日志之后的一个校验和*/
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void rewind(long lsn) {
+        lock.lock();
         try {
-            /*写入校验和*/
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            /*刷新缓冲区*/
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
+            reader = newReader(lsn);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public void rewind() {
-        position = 4;
+    public LogReader reader(long lsn) {
+        lock.lock();
+        try {
+            return newReader(lsn);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
+            SubArray log = reader.next();
             if(log == null) return null;
-            /*返回的时日志记录的data字段*/
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            /*返回的时日志记录的data字段  拷贝一份，读取器的视图下一次读取后失效*/
+            return Arrays.copyOfRange(log.raw, log.start, log.end);
         } finally {
             lock.unlock();
         }
     }
 
+    /*x为最后一个日志段中的LSN*/
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
@@ -236,19 +428,19 @@ public class LoggerImpl implements Logger{
            * 用于截断（缩减）文件的大小。
            * 该方法允许将一个已打开的文件截断到一个指定的大小。
            * */
-            fc.truncate(x);
+            LogSegment last = lastSegment();
+            last.fc.truncate(x - last.base);
         } finally {
             lock.unlock();
         }
     }
 
+    /*关闭之前把缓冲区中的日志全部落盘*/
     @Override
     public void close() {
-        try {
-            fc.close();
-            raf.close();
-        } catch(IOException e) {
-            Panic.panic(e);
+        flush(Long.MAX_VALUE);
+        for(LogSegment seg : segments) {
+            seg.close();
         }
     }
 
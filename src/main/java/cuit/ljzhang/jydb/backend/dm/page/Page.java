@@ -24,4 +24,10 @@ public interface Page {
 
     byte[] getData();
 
+    /*最近一次修改这个页面的日志的LSN  页面写回之前日志要先落盘到这里*/
+    long getLsn();
+
+    /*修改页面时持有页面锁设置，只会增大*/
+    void setLsn(long lsn);
+
 }
@@ -23,11 +23,16 @@ public class PageImpl implements Page{
     private byte[] data;
 
     //是否为脏页面  --- 脏页面：表示被修改过的页面，做缓存驱逐的时候需要将脏页面写回磁盘
-    private boolean dirty;
+    //后台刷盘线程会并发读写该标记
+    private volatile boolean dirty;
 
     //锁  --- 实现类选择ReentrantReadWritelock
+    //修改页面数据需要持有该锁，后台刷盘线程持有该锁拷贝页面，保证拷贝出的数据与LSN一致
     private Lock lock;
 
+    //最近一次修改该页面的日志LSN  只在内存中，重启时日志已经全部落盘
+    private volatile long lsn;
+
     /*
     * 拿到Page的引用之后可以快速对这个页面的缓存进行释放操作
     * 这个有点小六的设计模式：
@@ -52,7 +57,7 @@ public class PageImpl implements Page{
 
     @Override
     public void setDirty(boolean isDirty) {
-        this.dirty = false;
+        this.dirty = isDirty;
     }
 
     @Override
@@ -85,4 +90,16 @@ public class PageImpl implements Page{
         return data;
     }
 
+    @Override
+    public long getLsn() {
+        return lsn;
+    }
+
+    @Override
+    public void setLsn(long lsn) {
+        if(lsn > this.lsn) {
+            this.lsn = lsn;
+        }
+    }
+
 }
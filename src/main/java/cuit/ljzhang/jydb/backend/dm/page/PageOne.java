@@ -1,6 +1,7 @@
 package cuit.ljzhang.jydb.backend.dm.page;
 
 import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
+import cuit.ljzhang.jydb.backend.utils.Parser;
 import cuit.ljzhang.jydb.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -18,12 +19,33 @@ import java.util.Arrays;
  *      --- 启动
  *          --- 比较两处字节是否相同
  *                --- 不同，异常关闭，执行数据恢复流程
+ *      --- 空闲页链表
+ *          --- [FreeCount][PageNumber]...  从116字节开始，4字节的数量 + 每页4字节的页号
+ *          --- 记录文件中间没有写入过数据的页面，新建页面时优先复用，文件不再只增不减
+ *          --- 旧文件这段空间全是0，相当于空链表
+ *      --- 检查点页数
+ *          --- 96~99字节，最近一次检查点时文件的页数
+ *          --- 这些页面已经落盘，对应的日志可能已经被回收，恢复时不能截断
+ *      --- 检查点位置
+ *          --- 88~95字节，最近一次检查点日志之前的LSN，恢复时从这里找到检查点日志
+ *          --- 为0时没有做过检查点，恢复时读取全部日志
  */
 public class PageOne {
     /*随机字节的存储位置和长度*/
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
+    /*检查点页数的位置*/
+    private static final int OF_CKPT_PAGES = OF_VC - 4;
+
+    /*检查点日志位置的位置*/
+    private static final int OF_CKPT_LSN = OF_CKPT_PAGES - 8;
+
+    /*空闲页链表的位置和最多能记录的页数*/
+    private static final int OF_FREE_COUNT = OF_VC + 2 * LEN_VC;
+    private static final int OF_FREE_PAGES = OF_FREE_COUNT + 4;
+    public static final int MAX_FREE_PAGES = (PageCache.PAGE_SIZE - OF_FREE_PAGES) / 4;
+
     public static byte[] initRaw(){
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setVcOpen(raw);
@@ -31,8 +53,8 @@ public class PageOne {
     }
 
     public static void setVcOpen(Page page){
-        page.setDirty(true);
         setVcOpen(page.getData());
+        page.setDirty(true);
     }
 
     /*随机生成一个8字节长度的随机字节串到 raw*/
@@ -42,10 +64,15 @@ public class PageOne {
         System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
     }
 
+    /*打开时生成的随机字节*/
+    public static byte[] getVc(Page pg) {
+        return Arrays.copyOfRange(pg.getData(), OF_VC, OF_VC + LEN_VC);
+    }
+
     /*关闭系统的时候  需要把随机生成的字节回源到文件中*/
     public static void setVcClose(Page pg) {
-        pg.setDirty(true);
         setVcClose(pg.getData());
+        pg.setDirty(true);
     }
 
     /*关闭时拷贝字节到  raw对应的位置*/
@@ -66,5 +93,70 @@ public class PageOne {
         );
     }
 
+    /*
+    * 空闲页链表的操作都需要持有第一页的页面锁
+    * 空闲页数量
+    * */
+    public static int getFreePageCount(Page pg) {
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_FREE_COUNT, OF_FREE_PAGES));
+    }
+
+    /*记录一个空闲页  链表已满时返回false，这个页面由调用者继续处理*/
+    public static boolean pushFreePage(Page pg, int pageNumber) {
+        int count = getFreePageCount(pg);
+        if(count >= MAX_FREE_PAGES) {
+            return false;
+        }
+        System.arraycopy(Parser.int2Byte(pageNumber), 0, pg.getData(), OF_FREE_PAGES + count * 4, 4);
+        setFreePageCount(pg.getData(), count + 1);
+        pg.setDirty(true);
+        return true;
+    }
+
+    /*取出最后记录的空闲页  链表为空时返回0*/
+    public static int popFreePage(Page pg) {
+        int count = getFreePageCount(pg);
+        if(count == 0) {
+            return 0;
+        }
+        int offset = OF_FREE_PAGES + (count - 1) * 4;
+        int pageNumber = Parser.parseInt(Arrays.copyOfRange(pg.getData(), offset, offset + 4));
+        setFreePageCount(pg.getData(), count - 1);
+        pg.setDirty(true);
+        return pageNumber;
+    }
+
+    /*清空空闲页链表*/
+    public static void clearFreePages(Page pg) {
+        setFreePageCount(pg.getData(), 0);
+        pg.setDirty(true);
+    }
+
+    private static void setFreePageCount(byte[] raw, int count) {
+        System.arraycopy(Parser.int2Byte(count), 0, raw, OF_FREE_COUNT, 4);
+    }
+
+    /*记录检查点时文件的页数  需要持有第一页的页面锁*/
+    public static void setCheckpointPages(Page pg, int pages) {
+        System.arraycopy(Parser.int2Byte(pages), 0, pg.getData(), OF_CKPT_PAGES, 4);
+        pg.setDirty(true);
+    }
+
+    /*最近一次检查点时文件的页数  没有做过检查点时为0*/
+    public static int getCheckpointPages(Page pg) {
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_CKPT_PAGES, OF_CKPT_PAGES + 4));
+    }
+
+    /*记录检查点日志之前的LSN  需要持有第一页的页面锁*/
+    public static void setCheckpointLsn(Page pg, long lsn) {
+        System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_CKPT_LSN, 8);
+        pg.setDirty(true);
+    }
+
+    /*检查点日志之前的LSN  没有做过检查点时为0*/
+    public static long getCheckpointLsn(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_CKPT_LSN, OF_CKPT_LSN + 8));
+    }
+
 
 }
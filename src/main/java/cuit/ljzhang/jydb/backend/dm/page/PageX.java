@@ -1,5 +1,6 @@
 package cuit.ljzhang.jydb.backend.dm.page;
 
+import cuit.ljzhang.jydb.backend.common.SubArray;
 import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
 import cuit.ljzhang.jydb.backend.utils.Parser;
 
@@ -39,11 +40,12 @@ public class PageX {
     * 返回插入位置
     * */
     public static short insert(Page page, byte[] raw){
-        page.setDirty(true);
         short offset = getFSO(page.getData());
         /*从空闲的偏移位置开始将raw复制到page*/
         System.arraycopy(raw, 0, page.getData(), offset, raw.length);
         setFSO(page.getData(), (short)(offset + raw.length));
+        /*修改完成之后再标记脏页 --- 后台刷盘线程先清脏标记再写盘，保证修改不会丢失*/
+        page.setDirty(true);
         return offset;
     }
 
@@ -69,14 +71,34 @@ public class PageX {
         return PageCache.PAGE_SIZE - (int)getFSO(page);
     }
 
+    /*
+    * 页面是否从来没有写入过数据
+    * 扩展文件后还没来得及写入就崩溃的页面全是0，FSO也是0，同样算作空页
+    * */
+    public static boolean isEmpty(Page page){
+        return getFSO(page) <= OF_DATA;
+    }
+
+    /*把复用的空页重新初始化为普通页*/
+    public static void reset(Page page){
+        setFSO(page.getData(), OF_DATA);
+        page.setDirty(true);
+    }
+
     /*数据崩溃之后  重启恢复插入和更新数据*/
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
-        pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        recoverInsert(pg, new SubArray(raw, 0, raw.length), offset);
+    }
+
+    /*raw为日志中的视图  恢复时不需要先拷贝出来*/
+    public static void recoverInsert(Page pg, SubArray raw, short offset) {
+        int length = raw.end - raw.start;
+        System.arraycopy(raw.raw, raw.start, pg.getData(), offset, length);
         short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset + raw.length));
+        if(rawFSO < offset + length) {
+            setFSO(pg.getData(), (short)(offset + length));
         }
+        pg.setDirty(true);
     }
 
     /*
@@ -85,8 +107,12 @@ public class PageX {
     *       redo的一个更新操作
     * */
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+        recoverUpdate(pg, new SubArray(raw, 0, raw.length), offset);
+    }
+
+    public static void recoverUpdate(Page pg, SubArray raw, short offset) {
+        System.arraycopy(raw.raw, raw.start, pg.getData(), offset, raw.end - raw.start);
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
 
 }
@@ -1,5 +1,6 @@
 package cuit.ljzhang.jydb.backend.dm.pageCache;
 
+import cuit.ljzhang.jydb.backend.dm.logger.Logger;
 import cuit.ljzhang.jydb.backend.dm.page.Page;
 import cuit.ljzhang.jydb.backend.utils.Panic;
 
@@ -24,6 +25,9 @@ public interface PageCache {
     //页面大小为 8k  --- 2^13字节
     public static final int PAGE_SIZE = 1 << 13;
 
+    /*一次预读的最大页数  32页 = 256k*/
+    public static final int READ_AHEAD_PAGES = 32;
+
     int newPage(byte[] initData);
 
     Page getPage(int pageNumber) throws Exception;
@@ -38,7 +42,31 @@ public interface PageCache {
 
     void flushPage(Page page);
 
+    /*
+    * 将缓存中所有的脏页按页号顺序写回并刷盘一次
+    * 返回时，调用之前对页面做的修改都已经持久化
+    * */
+    void checkpoint();
+
+    /*
+    * 预读提示：从from开始的count个页面接下来会被顺序访问
+    *   --- 不在缓存中的页面按READ_AHEAD_PAGES一组，一次读入后直接放进缓存
+    *   --- 只是提示，页面仍然需要通过getPage获取；超出文件的部分会被忽略
+    * */
+    void prefetch(int from, int count);
+
+    /*
+    * 设置日志 --- 先写日志(WAL)
+    * 页面写回之前，日志先落盘到页面的LSN
+    * */
+    void setLogger(Logger logger);
+
     static PageCacheImpl create(String path, long memory){
+        return create(path, memory, false);
+    }
+
+    /*mapped：是否使用内存映射模式访问数据库文件*/
+    static PageCacheImpl create(String path, long memory, boolean mapped){
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -59,10 +87,14 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE, mapped);
     }
 
     static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, false);
+    }
+
+    static PageCacheImpl open(String path, long memory, boolean mapped) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(FileNotExistsException);
@@ -79,7 +111,7 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE, mapped);
     }
 
 }
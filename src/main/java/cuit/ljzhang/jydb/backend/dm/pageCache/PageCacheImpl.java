@@ -1,6 +1,9 @@
 package cuit.ljzhang.jydb.backend.dm.pageCache;
 
 import cuit.ljzhang.jydb.backend.common.AbstractCache;
+import cuit.ljzhang.jydb.backend.common.EvictionPolicy;
+import cuit.ljzhang.jydb.backend.common.primitive.LongHashSet;
+import cuit.ljzhang.jydb.backend.dm.logger.Logger;
 import cuit.ljzhang.jydb.backend.dm.page.Page;
 import cuit.ljzhang.jydb.backend.dm.page.PageImpl;
 import cuit.ljzhang.jydb.backend.utils.Panic;
@@ -9,9 +12,14 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static cuit.ljzhang.jydb.common.Error.MemTooSmallException;
 
@@ -26,15 +34,43 @@ import static cuit.ljzhang.jydb.common.Error.MemTooSmallException;
  * ---需要实现根据具体的数据源获取数据和释放数据接口
  * ---本系统的数据源为文件系统
  * !!!与原文不同!!!
- *      文件上锁：
- *          ---ReentrantReadWriteLock
- *          ---读取的时候应该可以使用共享锁
+ *      文件读写：
+ *          ---使用带位置参数的FileChannel.read/write，不修改channel的共享position
+ *          ---不同页面的读写可以并行，不需要文件锁
+ *          ---只有newPage扩展文件时需要加锁，保证页号分配和文件增长的顺序一致
+ *          ---newPage扩展文件后立即刷盘，页面在任何引用它的日志之前落盘
+ *      内存映射模式：
+ *          ---mapped == true 时页面直接从映射内存中拷贝，写回时写入映射内存
+ *          ---newPage仍然通过FileChannel扩展文件，映射在访问新页面时跟着增长
+ *      页帧复用：
+ *          ---缓存页的数据放在页帧池的页帧中，页面被淘汰后页帧回收给下一次缺页使用
+ *      缓存淘汰：
+ *          ---InnoDB风格的中点插入LRU，释放后的页面留在缓存中
+ *          ---被淘汰的脏页在releaseForCache中写回，但不刷盘
+ *      先写日志(WAL)：
+ *          ---页面记录最近一次修改它的日志LSN，写回页面之前日志先落盘到这个LSN
+ *      后台刷盘：
+ *          ---后台线程定期收集脏页，按页号顺序写回，每批只fsync一次
+ *          ---checkpoint()同步执行一批，返回时之前修改过的页面都已落盘
+ *      顺序预读：
+ *          ---连续缺页达到SEQUENTIAL_TRIGGER次之后，一次读入READ_AHEAD_PAGES页
+ *          ---prefetch(from, count)显式预读，启动扫描页面时不必等待顺序检测
+ *          ---预读的页面引用数为0，按新加载的页面进入old区，不会挤掉热点页面
+ *          ---读盘期间有页面写入文件时，读到的数据可能已经过期，放弃放进缓存
+ *      文件截断：
+ *          ---truncateByBgno截断文件末尾的页面，被截断的页面直接从缓存中丢弃
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     //Todo:解释
     private static final int MEM_MIN_LIM = 10;
 
+    /*后台刷盘间隔 毫秒*/
+    private static final long FLUSH_INTERVAL = 1000;
+
+    /*连续缺页多少次之后认为是顺序扫描*/
+    private static final int SEQUENTIAL_TRIGGER = 4;
+
     /*数据源文件后缀*/
     public static final String DB_SUFFIX = ".db";
 
@@ -42,16 +78,56 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     private RandomAccessFile raf;
     private FileChannel fc;
 
-    /*文件可重入式读写锁*/
-    private ReentrantReadWriteLock rwLock;
+    /*扩展文件的锁 --- 只在newPage时使用*/
+    private Lock extendLock;
 
     /*记录当前数据库文件的页数  -- 总页数  不只是当前在缓存中的*/
     private AtomicInteger pageNumbers;
 
+    /*内存映射 --- 没有开启内存映射模式时为null*/
+    private PageFileMapping mapping;
+
+    /*缓存页的页帧池*/
+    private PageFramePool frames;
+
+    /*后台刷盘线程*/
+    private Thread flusher;
+
+    /*保证同一时间只有一批刷盘在进行*/
+    private Lock flushLock;
+
+    private volatile boolean closed;
+
+    /*WAL 页面写回前日志先落盘 --- 没有设置时不检查*/
+    private volatile Logger logger;
+
+    /*缓存最多容纳的页数*/
+    private int maxResource;
+
+    /*预读缓冲区 --- 直接内存，一次读入READ_AHEAD_PAGES页*/
+    private ByteBuffer extent;
+
+    /*预读缓冲区同一时间只给一个线程使用*/
+    private Lock readAheadLock;
+
+    /*
+    * 页面写入文件的次数 --- 每次写完之后加1
+    * 预读开始前记下，放进缓存前比较，不相等说明读到的数据可能已经过期
+    * */
+    private AtomicLong pageWrites;
+
+    /*最近一次缺页的页号和连续缺页的次数 --- 只用于启发式判断，不需要精确同步*/
+    private volatile int lastMiss;
+    private volatile int sequentialRun;
+
 
     PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource){
-        /*初始化锁 + hash*/
-        super(maxResource);
+        this(raf, fc, maxResource, false);
+    }
+
+    PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, boolean mapped){
+        /*初始化分段锁 + hash + 淘汰策略*/
+        super(maxResource, defaultConcurrency(), EvictionPolicy::midpointLru);
         if(maxResource < MEM_MIN_LIM){
             Panic.panic(MemTooSmallException);
         }
@@ -64,41 +140,187 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         }
         this.fc = fc;
         this.raf = raf;
-        rwLock = new ReentrantReadWriteLock();
+        extendLock = new ReentrantLock();
         /*每一页的大小为8k*/
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / PAGE_SIZE));
+        if(mapped) {
+            this.mapping = new PageFileMapping(fc);
+        }
+        this.frames = new PageFramePool(maxResource);
+        this.maxResource = maxResource;
+        this.readAheadLock = new ReentrantLock();
+        this.pageWrites = new AtomicLong();
+        this.flushLock = new ReentrantLock();
+        this.flusher = new Thread(this::flushLoop, "jydb-page-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
     }
 
     /*获取页在文件中的存储位置*/
     private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+        return (long)(pgno-1) * PAGE_SIZE;
     }
 
-    /*对指定的缓存脏页进行回源*/
+    /*对指定的缓存脏页进行回源  并立即刷盘*/
     private void flush(Page page){
-        int pageNumber = page.getPageNumber();
-        long offset = pageOffset(pageNumber);
-        /*独占锁 -- 保证线程安全的*/
-        rwLock.writeLock().lock();
+        page.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }finally {
+            page.setDirty(false);
+            flushLog(page.getLsn());
+            write(page.getPageNumber(), page.getData());
+        } finally {
+            page.unlock();
+        }
+        sync();
+    }
+
+    /*WAL：日志落盘到lsn之后页面才能写回*/
+    private void flushLog(long lsn){
+        Logger lg = logger;
+        if(lg != null && lsn > 0) {
+            lg.flush(lsn);
+        }
+    }
+
+    /*
+    * 写回一个仍然在缓存中、可能被并发修改的页面
+    *   --- 持有页面锁清脏标记，拷贝页面数据和LSN，拷贝出的数据与LSN是一致的
+    *   --- 日志先落盘到LSN，再写入拷贝出的数据
+    * */
+    private void writeBack(Page page, byte[] scratch){
+        long lsn;
+        page.lock();
+        try {
+            page.setDirty(false);
+            System.arraycopy(page.getData(), 0, scratch, 0, PAGE_SIZE);
+            lsn = page.getLsn();
+        } finally {
+            page.unlock();
+        }
+        flushLog(lsn);
+        write(page.getPageNumber(), scratch);
+    }
+
+    /*将页面写入数据源 --- 不刷盘*/
+    private void write(int pgno, byte[] data){
+        if(mapping != null) {
             try {
-                fc.force(false);
+                mapping.write(pgno, data);
             } catch (IOException e) {
                 Panic.panic(e);
             }
-            rwLock.writeLock().unlock();
+        } else {
+            writePage(pgno, data);
+        }
+        pageWrites.incrementAndGet();
+    }
+
+    /*
+    * 通过FileChannel写入页面  --- 新建页面时用来扩展文件
+    * 位置写不依赖channel的position，不同页面可以同时写
+    * */
+    private void writePage(int pgno, byte[] data){
+        long offset = pageOffset(pgno);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /*刷盘  内存映射模式下映射内存和FileChannel都需要刷*/
+    private void sync(){
+        if(mapping != null) {
+            mapping.force();
+        }
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /*
+    * 后台刷盘线程
+    *   --- 每隔FLUSH_INTERVAL毫秒，或者淘汰时遇到脏页被唤醒，执行一次批量刷盘
+    * */
+    private void flushLoop(){
+        while(!closed){
+            LockSupport.parkNanos(FLUSH_INTERVAL * 1_000_000L);
+            if(closed) {
+                break;
+            }
+            flushDirtyPages(false);
+        }
+    }
+
+    /*
+    * 批量刷盘
+    *   --- 收集缓存中所有的脏页，加引用防止刷盘期间被淘汰
+    *   --- 按页号排序后依次写入，尽量顺序写
+    *   --- 整批只刷一次盘
+    * 先清脏标记再写盘：写盘期间页面又被修改时脏标记会重新置上，下一批再写
+    * 页面仍然可能被修改，持有页面锁拷贝之后再写，见writeBack
+    * 每次最多固定缓存的一半，脏页更多时分几轮写入，最后统一刷盘
+    *   --- 本批已经写过的页面不再收集，页面一直被修改时也不会一直循环下去
+    * force：没有脏页时也刷盘 --- 淘汰时写回的页面只写不刷，检查点需要它们也落盘
+    * */
+    private void flushDirtyPages(boolean force){
+        flushLock.lock();
+        byte[] scratch = frames.acquire();
+        try {
+            LongHashSet written = new LongHashSet();
+            while(true) {
+                List<Page> dirty = pinResident(p -> p.isDirty() && !written.contains(p.getPageNumber()));
+                if(dirty.isEmpty()) {
+                    break;
+                }
+                dirty.sort(Comparator.comparingInt(Page::getPageNumber));
+                try {
+                    for(Page page : dirty) {
+                        writeBack(page, scratch);
+                        written.add(page.getPageNumber());
+                    }
+                } finally {
+                    for(Page page : dirty) {
+                        release(page);
+                    }
+                }
+            }
+            if(force || !written.isEmpty()) {
+                sync();
+            }
+        } finally {
+            frames.recycle(scratch);
+            flushLock.unlock();
         }
     }
 
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void checkpoint() {
+        flushDirtyPages(true);
+    }
+
     @Override
     public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        /*剩下的脏页在回源时写入 最后统一刷盘*/
         super.close();
+        sync();
         try {
             fc.close();
             raf.close();
@@ -112,40 +334,187 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     protected Page getFoCache(long key) throws Exception {
         /*获取缓存页在文件中的偏移位置*/
         int pgno = (int)key;
+        /*从页帧池中取一个页帧 --- 不再每次缺页都分配新数组*/
+        byte[] frame = frames.acquire();
+        /*顺序扫描 --- 当前页和后面的页面一次读入*/
+        if(mapping == null && isSequential(pgno)) {
+            int n = readExtent(pgno, READ_AHEAD_PAGES, frame);
+            if(n > 0) {
+                lastMiss = pgno + n - 1;
+                return new PageImpl(pgno, frame, this);
+            }
+        }
+        if(mapping != null) {
+            /*直接从映射内存中拷贝 --- 没有系统调用*/
+            mapping.read(pgno, frame);
+            return new PageImpl(pgno, frame, this);
+        }
         long offset = PageCacheImpl.pageOffset(pgno);
-        /*分配内存空间  读取页数据*/
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        /*读取共享资源 --- 上读锁*/
-        rwLock.readLock().lock();
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        /*位置读 --- 不需要加锁*/
         try {
-            fc.position(offset);
-            fc.read(buf);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        }
+        /*读到文件末尾 --- 页帧中剩下的旧数据清零*/
+        Arrays.fill(frame, buf.position(), PAGE_SIZE, (byte) 0);
+        return new PageImpl(pgno, frame, this);
+    }
+
+    /*
+    * 顺序访问检测
+    *   --- 缺页的页号紧跟在上一次缺页之后，连续次数加1，否则清零
+    *   --- 预读之后lastMiss移到预读的最后一页，扫描继续时仍然是连续的
+    * */
+    private boolean isSequential(int pgno){
+        boolean sequential = pgno == lastMiss + 1;
+        lastMiss = pgno;
+        if(!sequential) {
+            sequentialRun = 0;
+            return false;
+        }
+        sequentialRun = sequentialRun + 1;
+        return sequentialRun >= SEQUENTIAL_TRIGGER;
+    }
+
+    /*
+    * 一次读入[from, from+count)中的页面  超出文件的部分忽略
+    *   --- first != null：缺页路径，from页放进first返回给调用者，其余页面预读进缓存
+    *   --- first == null：prefetch，所有页面都预读进缓存
+    * 返回读入的页数，预读缓冲区被其他线程占用时返回0，由调用者退化为单页读取
+    * */
+    private int readExtent(int from, int count, byte[] first){
+        int last = Math.min(from + count - 1, pageNumbers.get());
+        if(first == null) {
+            /*两端已经在缓存中的页面不需要读*/
+            while(from <= last && contains(from)) {
+                from++;
+            }
+            while(last >= from && contains(last)) {
+                last--;
+            }
+        }
+        if(last < from) {
+            return 0;
+        }
+        int n = last - from + 1;
+        long stamp = pageWrites.get();
+        if(mapping != null) {
+            /*映射模式没有系统调用  逐页拷贝即可*/
+            for(int i = 0; i < n; i++) {
+                byte[] frame = frames.acquire();
+                try {
+                    mapping.read(from + i, frame);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                preloadPage(from + i, frame, stamp);
+            }
+            return n;
+        }
+        if(!readAheadLock.tryLock()) {
+            return 0;
+        }
+        try {
+            if(extent == null) {
+                extent = ByteBuffer.allocateDirect(READ_AHEAD_PAGES * PAGE_SIZE);
+            }
+            extent.clear();
+            extent.limit(n * PAGE_SIZE);
+            long offset = pageOffset(from);
+            try {
+                while(extent.hasRemaining()) {
+                    if(fc.read(extent, offset + extent.position()) < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            int read = extent.position();
+            for(int i = 0; i < n; i++) {
+                byte[] frame = (i == 0 && first != null) ? first : frames.acquire();
+                int len = Math.max(0, Math.min(PAGE_SIZE, read - i * PAGE_SIZE));
+                extent.position(i * PAGE_SIZE);
+                extent.get(frame, 0, len);
+                /*读到文件末尾 --- 页帧中剩下的旧数据清零*/
+                Arrays.fill(frame, len, PAGE_SIZE, (byte) 0);
+                if(frame != first) {
+                    preloadPage(from + i, frame, stamp);
+                }
+            }
+            return n;
         } finally {
-            /*释放读锁*/
-            rwLock.readLock().unlock();
+            readAheadLock.unlock();
+        }
+    }
+
+    /*预读的页面放进缓存  放不进去时页帧直接归还*/
+    private void preloadPage(int pgno, byte[] frame, long stamp){
+        Page page = new PageImpl(pgno, frame, this);
+        if(!preload(pgno, page, () -> pageWrites.get() == stamp)) {
+            frames.recycle(frame);
         }
-        return new PageImpl(pgno, buf.array(), this);
     }
 
-    /*释放缓存页 根据dirty字段进行判断是否回源*/
+    @Override
+    public void prefetch(int from, int count) {
+        if(closed) {
+            return;
+        }
+        /*最多预读缓存容量的一半  太多的话后读入的页面会把先读入的淘汰掉*/
+        count = Math.min(count, maxResource / 2);
+        for(int pgno = Math.max(from, 1); pgno < from + count; pgno += READ_AHEAD_PAGES) {
+            readExtent(pgno, Math.min(READ_AHEAD_PAGES, from + count - pgno), null);
+        }
+    }
+
+    /*
+    * 释放缓存页 根据dirty字段进行判断是否回源
+    * 只写入不刷盘，刷盘交给后台线程的下一批
+    * 前台线程淘汰到了脏页说明脏页积压了，唤醒后台线程
+    * 页面移出缓存之后没有任何引用，页帧归还给页帧池
+    * 被淘汰的页面没有引用，不会再被修改，不需要拷贝
+    * */
     @Override
     protected void releaseForCache(Page page) {
         if(page.isDirty()){
             /*回源*/
-            flush(page);
             page.setDirty(false);
+            flushLog(page.getLsn());
+            write(page.getPageNumber(), page.getData());
+            LockSupport.unpark(flusher);
         }
+        frames.recycle(page.getData());
     }
 
 
     @Override
     public int newPage(byte[] initData) {
-        int pageNumber = pageNumbers.incrementAndGet();
-        Page page = new PageImpl(pageNumber, initData);
-        flush(page);
-        return pageNumber;
+        /*页号分配和文件扩展放在一起  文件只会按页号顺序增长*/
+        extendLock.lock();
+        try {
+            int pageNumber = pageNumbers.incrementAndGet();
+            writePage(pageNumber, initData);
+            /*
+            * 扩展文件必须落盘：之后插入的日志可能先落盘
+            * 崩溃后文件短于日志中的页号时，恢复重做到文件之外的页面不会被页面索引看到
+            * */
+            try {
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            pageWrites.incrementAndGet();
+            return pageNumber;
+        } finally {
+            extendLock.unlock();
+        }
     }
 
     @Override
@@ -158,10 +527,37 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         super.release(page.getPageNumber());
     }
 
-    //Todo: 待完成
+    /*
+    * 把文件截断到maxPagno页
+    *   --- 只在打开数据库时(恢复、初始化页面索引)调用，被截断的页面不能再被引用
+    *   --- 被截断的页面直接移出缓存，不回源，页帧归还页帧池
+    *   --- 持有扩展锁和刷盘锁：截断期间不会新建页面，后台线程也不会把被截断的页面写回去
+    * */
     @Override
     public void truncateByBgno(int maxPagno) {
-
+        extendLock.lock();
+        flushLock.lock();
+        try {
+            if(maxPagno >= pageNumbers.get()) {
+                return;
+            }
+            discard(pgno -> pgno > maxPagno, page -> frames.recycle(page.getData()));
+            try {
+                fc.truncate(pageOffset(maxPagno + 1));
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            if(mapping != null) {
+                mapping.reset();
+            }
+            pageNumbers.set(maxPagno);
+            /*正在进行的预读读到的可能是截断之前的数据*/
+            pageWrites.incrementAndGet();
+        } finally {
+            flushLock.unlock();
+            extendLock.unlock();
+        }
     }
 
     @Override
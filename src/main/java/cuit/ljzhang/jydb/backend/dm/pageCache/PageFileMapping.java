@@ -0,0 +1,153 @@
+package cuit.ljzhang.jydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static cuit.ljzhang.jydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * @ClassName PageFileMapping
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 15:02
+ * @Version 1.0
+ * 数据库文件的内存映射：
+ *      --- 文件按 REGION_SIZE 切成多个区域，每个区域一个MappedByteBuffer
+ *      --- 读写页面直接访问映射内存，不需要read/write系统调用
+ *      --- 映射范围不会超过文件的实际长度
+ *          ---READ_WRITE映射超出文件长度时会把文件撑大，重新打开时页数就算错了
+ *          ---newPage扩展文件之后，第一次访问新页面时再把最后一个区域重新映射到新长度
+ *      --- 读写锁只保护区域数组：访问页面用读锁，重新映射用写锁
+ */
+class PageFileMapping {
+
+    /*每个映射区域的大小 64M  --- 8192页*/
+    static final int REGION_SIZE = 1 << 26;
+
+    private static final int PAGES_PER_REGION = REGION_SIZE / PAGE_SIZE;
+
+    private FileChannel fc;
+
+    private MappedByteBuffer[] regions;
+
+    /*每个区域已经映射的字节数*/
+    private int[] mappedLength;
+
+    private ReentrantReadWriteLock lock;
+
+    PageFileMapping(FileChannel fc) {
+        this.fc = fc;
+        this.regions = new MappedByteBuffer[0];
+        this.mappedLength = new int[0];
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /*将页面数据从映射内存拷贝到dst  页面超出文件末尾时dst被清零*/
+    void read(int pgno, byte[] dst) throws IOException {
+        lock.readLock().lock();
+        try {
+            ByteBuffer buf = slice(pgno);
+            if(buf != null) {
+                buf.get(dst, 0, PAGE_SIZE);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(remap(pgno)) {
+            read(pgno, dst);
+            return;
+        }
+        /*页面超出了文件末尾 --- 与FileChannel.read一样，读到的是全0*/
+        Arrays.fill(dst, (byte) 0);
+    }
+
+    /*将页面数据写入映射内存  页面必须已经在文件中(newPage已经扩展了文件)*/
+    void write(int pgno, byte[] src) throws IOException {
+        lock.readLock().lock();
+        try {
+            ByteBuffer buf = slice(pgno);
+            if(buf != null) {
+                buf.put(src, 0, PAGE_SIZE);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(!remap(pgno)) {
+            throw new IOException("Page " + pgno + " is beyond the end of file");
+        }
+        write(pgno, src);
+    }
+
+    /*把映射内存中的修改刷回磁盘*/
+    void force() {
+        lock.readLock().lock();
+        try {
+            for(MappedByteBuffer region : regions) {
+                if(region != null) {
+                    region.force();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*文件被截断之后 丢弃超出文件长度的映射*/
+    void reset() {
+        lock.writeLock().lock();
+        try {
+            regions = new MappedByteBuffer[0];
+            mappedLength = new int[0];
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*返回定位到页面起始位置的视图，页面不在映射范围内时返回null*/
+    private ByteBuffer slice(int pgno) {
+        int index = (pgno - 1) / PAGES_PER_REGION;
+        int offset = (pgno - 1) % PAGES_PER_REGION * PAGE_SIZE;
+        if(index >= regions.length || regions[index] == null
+                || offset + PAGE_SIZE > mappedLength[index]) {
+            return null;
+        }
+        /*MappedByteBuffer的position不是线程安全的，每次访问使用独立的视图*/
+        ByteBuffer buf = regions[index].duplicate();
+        buf.position(offset);
+        return buf;
+    }
+
+    /*
+    * 重新映射页面所在的区域，映射长度为文件当前长度与区域大小的较小值
+    * 页面仍然超出文件长度时返回false
+    * */
+    private boolean remap(int pgno) throws IOException {
+        int index = (pgno - 1) / PAGES_PER_REGION;
+        int offset = (pgno - 1) % PAGES_PER_REGION * PAGE_SIZE;
+        lock.writeLock().lock();
+        try {
+            long regionStart = (long) index * REGION_SIZE;
+            long length = Math.min(fc.size() - regionStart, REGION_SIZE);
+            if(length < offset + PAGE_SIZE) {
+                return false;
+            }
+            if(index >= regions.length) {
+                regions = Arrays.copyOf(regions, index + 1);
+                mappedLength = Arrays.copyOf(mappedLength, index + 1);
+            }
+            if(regions[index] == null || mappedLength[index] < length) {
+                regions[index] = fc.map(FileChannel.MapMode.READ_WRITE, regionStart, length);
+                mappedLength[index] = (int) length;
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package cuit.ljzhang.jydb.backend.dm.pageCache;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static cuit.ljzhang.jydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * @ClassName PageFramePool
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 16:40
+ * @Version 1.0
+ * 页帧池：
+ *      --- 缓存中每个页面的数据都放在一个8k的页帧中
+ *      --- 页面被淘汰后页帧回收复用，不再每次缺页都分配新的数组
+ *      --- 页帧数量与缓存容量相同，按需分配，分配满之后只复用
+ *      --- 页帧长期存活，进入老年代之后不会再给年轻代GC带来压力
+ * 页帧是堆上的byte[]：Page、PageX、DataItem都直接操作页面的byte[]
+ *      --- DataItem的SubArray就是页帧上的视图，不需要拷贝
+ */
+class PageFramePool {
+
+    private int capacity;
+
+    /*已经分配过的页帧数*/
+    private int allocated;
+
+    private ArrayDeque<byte[]> free;
+
+    private Lock lock;
+
+    PageFramePool(int capacity) {
+        this.capacity = capacity;
+        this.free = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+    }
+
+    /*
+    * 获取一个页帧  内容是上一个使用者留下的数据，调用者需要整页覆盖
+    * 缓存容量保证正常情况下不会超过capacity，超过时退化为直接分配
+    * */
+    byte[] acquire() {
+        lock.lock();
+        try {
+            byte[] frame = free.pollLast();
+            if(frame != null) {
+                return frame;
+            }
+            allocated++;
+        } finally {
+            lock.unlock();
+        }
+        return new byte[PAGE_SIZE];
+    }
+
+    /*归还页帧  页面被淘汰或者缓存关闭时调用*/
+    void recycle(byte[] frame) {
+        if(frame.length != PAGE_SIZE) {
+            return;
+        }
+        lock.lock();
+        try {
+            if(free.size() < capacity) {
+                free.addLast(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int allocated() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
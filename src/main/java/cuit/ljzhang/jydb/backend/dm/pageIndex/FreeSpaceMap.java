@@ -0,0 +1,229 @@
+package cuit.ljzhang.jydb.backend.dm.pageIndex;
+
+import cuit.ljzhang.jydb.backend.dm.page.PageX;
+import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static cuit.ljzhang.jydb.common.Error.FileCannotRWException;
+import static cuit.ljzhang.jydb.common.Error.FileExistsException;
+
+/**
+ * @ClassName FreeSpaceMap
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 22:00
+ * @Version 1.0
+ * 空闲空间表：每个普通页一个字节，记录它的空闲空间落在页面索引的哪个区间
+ *      --- 0 表示没有写入过数据的空页  其余为 区间 + 1
+ *      --- 插入数据之后和页面索引一起更新，只在内存中修改
+ *      --- 正常关闭时整个写入文件，下次打开时直接重建页面索引，不需要读入所有页面
+ * 文件格式：[VC][PageCount][Bucket]...
+ *      --- VC：写入时第一页中的随机字节  和打开时第一页的不一致说明文件不是最后一次正常关闭时写入的
+ *      --- 页号为pgno的页面在第pgno - 2个Bucket
+ * 只减不增：页面的空闲空间只会因为插入而变小
+ *      崩溃之后文件里记录的空闲空间可能比实际的大，恢复之后不能使用，仍然扫描所有页面
+ */
+public class FreeSpaceMap {
+
+    public static final String FSM_SUFFIX = ".fsm";
+
+    private static final int LEN_VC = 8;
+    private static final int OF_PAGE_COUNT = LEN_VC;
+    private static final int OF_BUCKETS = OF_PAGE_COUNT + 4;
+
+    /*和PageIndex的区间一致*/
+    private static final int THRESHOLD = PageCache.PAGE_SIZE / PageIndex.INTERVALS_NO;
+
+    private static final byte EMPTY = 0;
+
+    private RandomAccessFile raf;
+    private FileChannel fc;
+
+    /*第i个字节是第i + 2页的Bucket*/
+    private byte[] buckets;
+    /*已经记录的最大页号*/
+    private int pageCount;
+
+    private Lock lock;
+
+    FreeSpaceMap(RandomAccessFile raf, FileChannel fc) {
+        this.raf = raf;
+        this.fc = fc;
+        this.buckets = new byte[PageCache.PAGE_SIZE];
+        this.pageCount = 1;
+        this.lock = new ReentrantLock();
+    }
+
+    public static FreeSpaceMap create(String path) {
+        File f = new File(path + FSM_SUFFIX);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return openFile(f);
+    }
+
+    /*没有空闲空间表的旧数据库  打开时新建一个空文件*/
+    public static FreeSpaceMap open(String path) {
+        File f = new File(path + FSM_SUFFIX);
+        try {
+            f.createNewFile();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return openFile(f);
+    }
+
+    private static FreeSpaceMap openFile(File f) {
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(FileCannotRWException);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new FreeSpaceMap(raf, raf.getChannel());
+    }
+
+    /*
+    * 读入文件中的空闲空间表
+    * vc:第一页中的随机字节  文件不是这一次写入的时候返回false，空闲空间表为空
+    * */
+    public boolean load(byte[] vc) {
+        try {
+            long size = fc.size();
+            if(size < OF_BUCKETS) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(OF_BUCKETS);
+            readFully(header, 0);
+            if(!Arrays.equals(Arrays.copyOf(header.array(), LEN_VC), vc)) {
+                return false;
+            }
+            int count = header.getInt(OF_PAGE_COUNT);
+            if(count < 1 || size < OF_BUCKETS + (long) (count - 1)) {
+                return false;
+            }
+            byte[] b = new byte[Math.max(count - 1, PageCache.PAGE_SIZE)];
+            readFully(ByteBuffer.wrap(b, 0, count - 1), OF_BUCKETS);
+            lock.lock();
+            try {
+                buckets = b;
+                pageCount = count;
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return true;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()) {
+            if(fc.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of free space map");
+            }
+        }
+    }
+
+    /*文件中记录到的最大页号*/
+    public int getPageCount() {
+        lock.lock();
+        try {
+            return pageCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    * 页面的空闲空间  空页返回MAX_FREE_SPACE
+    * 不是准确值，是所在区间的下界：放进页面索引时落在同一个区间
+    * */
+    public int get(int pageNumber) {
+        lock.lock();
+        try {
+            int bucket = pageNumber > pageCount ? EMPTY : buckets[pageNumber - 2];
+            if(bucket == EMPTY) {
+                return PageX.MAX_FREE_SPACE;
+            }
+            return (bucket - 1) * THRESHOLD;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*记录页面的空闲空间*/
+    public void set(int pageNumber, int freeSpace) {
+        byte bucket = freeSpace >= PageX.MAX_FREE_SPACE ? EMPTY : (byte) (freeSpace / THRESHOLD + 1);
+        lock.lock();
+        try {
+            int index = pageNumber - 2;
+            if(index >= buckets.length) {
+                buckets = Arrays.copyOf(buckets, Math.max(buckets.length * 2, index + 1));
+            }
+            buckets[index] = bucket;
+            pageCount = Math.max(pageCount, pageNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*文件截断到maxPgno页  之后的页面不再记录*/
+    public void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            if(maxPgno < pageCount) {
+                Arrays.fill(buckets, Math.max(maxPgno - 1, 0), pageCount - 1, EMPTY);
+                pageCount = Math.max(maxPgno, 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    * 正常关闭时写入文件
+    * vc:第一页中的随机字节  pages:数据库文件的页数，之后新建还没有插入过数据的页面记为空页
+    * 先写Bucket再写文件头：写到一半崩溃时文件头中还是上一次的VC，不会被使用
+    * */
+    public void close(byte[] vc, int pages) {
+        lock.lock();
+        try {
+            int count = Math.max(pageCount, pages);
+            if(count - 1 > buckets.length) {
+                buckets = Arrays.copyOf(buckets, count - 1);
+            }
+            fc.truncate(OF_BUCKETS + (long) (count - 1));
+            fc.write(ByteBuffer.wrap(buckets, 0, count - 1), OF_BUCKETS);
+            fc.force(false);
+            ByteBuffer header = ByteBuffer.allocate(OF_BUCKETS);
+            header.put(vc);
+            header.putInt(count);
+            header.flip();
+            fc.write(header, 0);
+            fc.force(false);
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
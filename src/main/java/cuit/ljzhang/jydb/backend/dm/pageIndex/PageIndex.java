@@ -2,7 +2,10 @@ package cuit.ljzhang.jydb.backend.dm.pageIndex;
 
 import cuit.ljzhang.jydb.backend.dm.pageCache.PageCache;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @ClassName PageIndex
@@ -16,33 +19,56 @@ import java.util.List;
  */
 public class PageIndex {
     /*将页的数据空间大小按顺序划分为四个区间*/
-    private static final int INTERVALS_NO = 40;
+    static final int INTERVALS_NO = 40;
     /* 8k / 4 = 1024 * 8 / 40 = 2048 / 10 = 204.8*/
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    /*四十个区间*/
+    /*四十个区间  空闲空间满一页的页面落在第40个区间，所以需要41个*/
     private List<PageInfo>[] lists;
 
+    /*insert会被多个线程同时调用*/
+    private Lock lock;
+
+    public PageIndex() {
+        lock = new ReentrantLock();
+        @SuppressWarnings("unchecked")
+        List<PageInfo>[] l = (List<PageInfo>[]) new List<?>[INTERVALS_NO + 1];
+        lists = l;
+        for(int i = 0; i <= INTERVALS_NO; i++) {
+            lists[i] = new ArrayList<>();
+        }
+    }
+
     /* 根据需要的空间大小计算出 需要的页面区间 快速获取页面 */
     public PageInfo select(int spaceSize){
-        int number = spaceSize / THRESHOLD;
-        /*向上取整 保证页的剩余空间大小能写入数据*/
-        if(number < INTERVALS_NO)number ++;
-        while(number <= INTERVALS_NO){
-            //如果指定的数据空间没有页面  那么就需要选剩余空间更大的页面
-            if(lists[number].size() == 0){
-                number++;
-                continue;
+        lock.lock();
+        try {
+            int number = spaceSize / THRESHOLD;
+            /*向上取整 保证页的剩余空间大小能写入数据*/
+            if(number < INTERVALS_NO)number ++;
+            while(number <= INTERVALS_NO){
+                //如果指定的数据空间没有页面  那么就需要选剩余空间更大的页面
+                if(lists[number].size() == 0){
+                    number++;
+                    continue;
+                }
+                return lists[number].remove(0);
             }
-            return lists[number].remove(0);
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     /*上层模块使用完我们的页面后 会将页面插入回来*/
     public void add(int pageNumber, int freeSpace){
-        int number = freeSpace / INTERVALS_NO;
-        lists[number].add(new PageInfo(pageNumber, freeSpace));
+        lock.lock();
+        try {
+            int number = freeSpace / THRESHOLD;
+            lists[number].add(new PageInfo(pageNumber, freeSpace));
+        } finally {
+            lock.unlock();
+        }
     }
 
 
@@ -0,0 +1,445 @@
+package cuit.ljzhang.jydb.backend.tm;
+
+import cuit.ljzhang.jydb.backend.common.primitive.LongHashSet;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static cuit.ljzhang.jydb.backend.tm.TransactionManagerImpl.*;
+import static cuit.ljzhang.jydb.common.Error.BadXIDFileException;
+import static cuit.ljzhang.jydb.common.Error.FrozenXIDException;
+
+/**
+ * @ClassName MappedTransactionManager
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 21:20
+ * @Version 1.0
+ * 内存映射模式的TM：XID文件格式和TransactionManagerImpl相同，两种模式可以打开同一个文件
+ *      --- 文件按CHUNK_SIZE分块映射，状态的查询和修改直接读写映射的内存
+ *      --- 修改超出已映射的范围时映射下一块  按读写模式映射超出文件长度的部分会把文件扩展到块的末尾
+ *      --- 落盘靠force映射的内存，和TransactionManagerImpl一样合并force
+ *      --- 只在内存中提交的事务不写入映射的内存(操作系统随时可能把它写回文件)，另外记在集合中
+ * XidCounter：
+ *      --- 文件按块扩展，长度推算不出事务数
+ *          打开时取文件头和最后一个写过状态的事务中的较大值  写过的状态(提交、回滚)都不为0
+ * 压缩：同TransactionManagerImpl  新文件替换之后重新映射
+ *      --- 只在内存中提交的事务不在映射的内存中，压缩到其中最小的xid之前
+ */
+class MappedTransactionManager implements TransactionManager {
+
+    // 每次映射的字节数  一块存放4M个事务的状态
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private static final byte FIELD_TRAN_ACTIVE   = 0;
+
+    private static final byte FIELD_TRAN_COMMITTED = 1;
+
+    private static final byte FIELD_TRAN_ABORTED  = 2;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+
+    private AtomicLong xidCounter;
+
+    /*
+    * 映射的文件  压缩时整个替换
+    * 修改都在statusLock中进行，扩展时换成新的块数组
+    * */
+    private volatile Mapping mapping;
+    private Lock statusLock;
+
+    /*
+    * 只在内存中提交、还没有写入映射内存的事务  在statusLock中修改和查询
+    * memCommittedSize:集合的大小  为0时查询不用加锁
+    * */
+    private LongHashSet memCommitted;
+    private volatile int memCommittedSize;
+
+    /*合并force  同TransactionManagerImpl*/
+    private long writtenSeq;
+    private long syncedSeq;
+    private boolean syncing;
+    private Lock syncLock;
+    private Condition synced;
+
+    /*
+    * header:FrozenXid和之前回滚的事务  dataStart:第一个事务状态的位置
+    * chunks:已映射的块  第i块对应文件中[i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE)，第0块包含文件头
+    * */
+    private static final class Mapping {
+        final XidFileHeader header;
+        final long dataStart;
+        final MappedByteBuffer[] chunks;
+
+        Mapping(XidFileHeader header, MappedByteBuffer[] chunks) {
+            this.header = header;
+            this.dataStart = header.length();
+            this.chunks = chunks;
+        }
+
+        byte get(long pos) {
+            return chunks[(int) (pos / CHUNK_SIZE)].get((int) (pos % CHUNK_SIZE));
+        }
+    }
+
+    MappedTransactionManager(File file, RandomAccessFile raf, FileChannel fc) {
+        this.file = file;
+        this.raf = raf;
+        this.fc = fc;
+        statusLock = new ReentrantLock();
+        syncLock = new ReentrantLock();
+        synced = syncLock.newCondition();
+        memCommitted = new LongHashSet();
+        mapFile();
+    }
+
+    /*
+    * 检查文件头，映射整个文件，恢复XidCounter
+    * */
+    private void mapFile() {
+        long fileLen = fileLength();
+        if(fileLen < XidFileHeader.LEN_FIXED) {
+            Panic.panic(BadXIDFileException);
+        }
+        XidFileHeader header = XidFileHeader.read(fc);
+        if(fileLen < header.length()) {
+            Panic.panic(BadXIDFileException);
+        }
+        Mapping m = mapAll(header, fileLen);
+        this.mapping = m;
+        long written = writtenLength(m, fileLen);
+        this.xidCounter = new AtomicLong(Math.max(header.xidCounter, header.frozenXid + written * XIDS_PER_BYTE));
+    }
+
+    /*从后往前找最后一个不为0的字节  返回之前事务状态的字节数*/
+    private static long writtenLength(Mapping m, long fileLen) {
+        for(long off = fileLen - 1; off >= m.dataStart; off--) {
+            if(m.get(off) != 0) {
+                return off - m.dataStart + 1;
+            }
+        }
+        return 0;
+    }
+
+    private long fileLength() {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    /*映射文件的全部内容*/
+    private Mapping mapAll(XidFileHeader header, long fileLen) {
+        int count = (int) ((fileLen + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        MappedByteBuffer[] c = new MappedByteBuffer[count];
+        for(int i = 0; i < count; i++) {
+            c[i] = map(i);
+        }
+        return new Mapping(header, c);
+    }
+
+    private MappedByteBuffer map(int chunk) {
+        try {
+            return fc.map(FileChannel.MapMode.READ_WRITE, (long) chunk * CHUNK_SIZE, CHUNK_SIZE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return null;
+    }
+
+    // 事务xid的状态所在的字节在文件中的位置
+    private static long getXidPosition(Mapping m, long xid) {
+        return m.dataStart + (xid - m.header.frozenXid - 1) / XIDS_PER_BYTE;
+    }
+
+    // 事务xid的状态在字节中的位置
+    private static int bitShift(long xid) {
+        return (int) ((xid - 1) % XIDS_PER_BYTE) * XID_FIELD_BITS;
+    }
+
+    @Override
+    public long begin() {
+        return xidCounter.incrementAndGet();
+    }
+
+    @Override
+    public long nextXid() {
+        return xidCounter.get() + 1;
+    }
+
+    @Override
+    public void commit(long xid) {
+        updateXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public void commitInMemory(long xid) {
+        statusLock.lock();
+        try {
+            memCommitted.add(xid);
+            memCommittedSize = memCommitted.size();
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    @Override
+    public void commit(long[] xids) {
+        if(xids.length == 0) {
+            return;
+        }
+        long seq;
+        long maxXid = 0;
+        statusLock.lock();
+        try {
+            for(long xid : xids) {
+                writeXID(xid, FIELD_TRAN_COMMITTED);
+                /*写入映射内存之后再移出集合  查询先查集合，不会看到中间的活跃状态*/
+                memCommitted.remove(xid);
+                maxXid = Math.max(maxXid, xid);
+            }
+            memCommittedSize = memCommitted.size();
+            seq = ++writtenSeq;
+        } finally {
+            statusLock.unlock();
+        }
+        xidCounter.accumulateAndGet(maxXid, Math::max);
+        sync(seq);
+    }
+
+    @Override
+    public void abort(long xid) {
+        updateXID(xid, FIELD_TRAN_ABORTED);
+    }
+
+    @Override
+    public boolean isActive(long xid) {
+        return checkXID(xid, FIELD_TRAN_ACTIVE);
+    }
+
+    @Override
+    public boolean isCommitted(long xid) {
+        return checkXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public boolean isAborted(long xid) {
+        return checkXID(xid, FIELD_TRAN_ABORTED);
+    }
+
+    @Override
+    public void close() {
+        /*写入XidCounter*/
+        statusLock.lock();
+        try {
+            mapping.chunks[0].putLong((int) XID_HEADER_POSITION, xidCounter.get());
+        } finally {
+            statusLock.unlock();
+        }
+        force();
+        /*映射在缓冲区被回收时解除*/
+        mapping = null;
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void freeze(long horizon) {
+        /*等待正在进行的force结束，并阻止新的force*/
+        syncLock.lock();
+        try {
+            while(syncing) {
+                synced.awaitUninterruptibly();
+            }
+            syncing = true;
+        } finally {
+            syncLock.unlock();
+        }
+        long seq = 0;
+        try {
+            statusLock.lock();
+            try {
+                seq = compact(horizon);
+            } finally {
+                statusLock.unlock();
+            }
+        } finally {
+            syncLock.lock();
+            syncing = false;
+            /*新文件已经落盘  包含了之前所有的写入*/
+            syncedSeq = Math.max(syncedSeq, seq);
+            synced.signalAll();
+            syncLock.unlock();
+        }
+    }
+
+    /*
+    * 压缩horizon之前的事务状态  在statusLock中调用
+    * 返回压缩时已经写入的次数  没有压缩时返回0
+    * */
+    private long compact(long horizon) {
+        Mapping m = mapping;
+        long base = m.header.frozenXid;
+        long frozen = (horizon - 1) / XIDS_PER_BYTE * XIDS_PER_BYTE;
+        for(long xid : memCommitted.toArray()) {
+            frozen = Math.min(frozen, (xid - 1) / XIDS_PER_BYTE * XIDS_PER_BYTE);
+        }
+        /*之后的事务都没有写过状态*/
+        int written = (int) writtenLength(m, fileLength());
+        frozen = Math.min(frozen, base + (long) written * XIDS_PER_BYTE);
+        if(frozen <= base) {
+            return 0;
+        }
+        int count = (int) ((frozen - base) / XIDS_PER_BYTE);
+        byte[] statuses = new byte[written];
+        for(int i = 0; i < written; i++) {
+            statuses[i] = m.get(m.dataStart + i);
+        }
+        XidFileHeader header = m.header.freeze(xidCounter.get(), statuses, count);
+        XidFileHeader.rewrite(file, header, statuses, count, written - count);
+        try {
+            fc.close();
+            raf.close();
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        mapping = mapAll(header, fileLength());
+        return writtenSeq;
+    }
+
+    /*更新xid事务的状态  写入映射内存并等待落盘*/
+    private void updateXID(long xid, byte status) {
+        long seq;
+        statusLock.lock();
+        try {
+            writeXID(xid, status);
+            seq = ++writtenSeq;
+        } finally {
+            statusLock.unlock();
+        }
+        xidCounter.accumulateAndGet(xid, Math::max);
+        sync(seq);
+    }
+
+    /*
+    * 等待第seq次写入落盘
+    * 没有force在进行时当前线程force，一次覆盖之前所有的写入  否则等待正在进行的force
+    * */
+    private void sync(long seq) {
+        syncLock.lock();
+        try {
+            while(syncedSeq < seq) {
+                if(syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target;
+                statusLock.lock();
+                try {
+                    target = writtenSeq;
+                } finally {
+                    statusLock.unlock();
+                }
+                syncLock.unlock();
+                try {
+                    force();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                }
+                syncedSeq = Math.max(syncedSeq, target);
+                synced.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /*
+    * 修改映射内存中xid的状态  在statusLock中调用
+    * 超出已映射的范围时映射新的块
+    * */
+    private void writeXID(long xid, byte status) {
+        Mapping m = mapping;
+        /*压缩掉的事务状态不再变化*/
+        if(xid <= m.header.frozenXid) {
+            Panic.panic(FrozenXIDException);
+        }
+        long pos = getXidPosition(m, xid);
+        int chunk = (int) (pos / CHUNK_SIZE);
+        MappedByteBuffer[] c = m.chunks;
+        if(chunk >= c.length) {
+            c = Arrays.copyOf(c, chunk + 1);
+            for(int i = m.chunks.length; i <= chunk; i++) {
+                c[i] = map(i);
+            }
+            mapping = new Mapping(m.header, c);
+        }
+        int index = (int) (pos % CHUNK_SIZE);
+        int shift = bitShift(xid);
+        byte b = (byte) ((c[chunk].get(index) & ~(XID_FIELD_MASK << shift)) | (status << shift));
+        /*之前的写入先于状态对其他线程可见  和checkXID中的acquireFence配对*/
+        VarHandle.releaseFence();
+        c[chunk].put(index, b);
+    }
+
+    private void force() {
+        for(MappedByteBuffer chunk : mapping.chunks) {
+            chunk.force();
+        }
+    }
+
+    /*获取xid事务是否处于status状态  直接读映射的内存*/
+    public Boolean checkXID(long xid, byte status) {
+        if(xid == SUPER_XID) {
+            return status == FIELD_TRAN_COMMITTED;
+        }
+        /*先查集合再读映射内存：移出集合之前状态已经写入映射内存*/
+        if(memCommittedSize > 0) {
+            statusLock.lock();
+            try {
+                if(memCommitted.contains(xid)) {
+                    return status == FIELD_TRAN_COMMITTED;
+                }
+            } finally {
+                statusLock.unlock();
+            }
+        }
+        Mapping m = mapping;
+        /*压缩掉的事务  不是回滚就是已提交*/
+        if(xid <= m.header.frozenXid) {
+            return status == (m.header.isAborted(xid) ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED);
+        }
+        long pos = getXidPosition(m, xid);
+        int chunk = (int) (pos / CHUNK_SIZE);
+        MappedByteBuffer[] c = m.chunks;
+        /*还没有写过状态的事务*/
+        if(chunk >= c.length) {
+            return status == FIELD_TRAN_ACTIVE;
+        }
+        byte b = c[chunk].get((int) (pos % CHUNK_SIZE));
+        VarHandle.acquireFence();
+        return ((b >> bitShift(xid)) & XID_FIELD_MASK) == status;
+    }
+}
@@ -9,7 +9,6 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
-import static cuit.ljzhang.jydb.backend.tm.TransactionManagerImpl.XID_HEADER_POSITION;
 import static cuit.ljzhang.jydb.common.Error.*;
 
 /**
@@ -33,8 +32,19 @@ public interface TransactionManager {
 
     /*开启一个新事务*/
     long begin();
+    /*下一个begin()将分配的xid  只读取，不分配*/
+    long nextXid();
     /*提交事务*/
     void commit(long xid);
+    /*
+    * 提交事务，但提交状态只记在内存中
+    *   --- 其他事务立即看到它已提交
+    *   --- 写入XID文件之前崩溃，恢复时按活跃事务回滚
+    * 之后需要用commit(long[])把状态写入XID文件
+    * */
+    void commitInMemory(long xid);
+    /*把一批事务的提交状态写入XID文件  只force一次*/
+    void commit(long[] xids);
     /*取消事务*/
     void abort(long xid);
     /*查询事务的状态是否为是正在进行*/
@@ -43,6 +53,12 @@ public interface TransactionManager {
     boolean isCommitted(long xid);
     /*查询书屋状态是否是已取消*/
     boolean isAborted(long xid);
+    /*
+    * 压缩事务状态表
+    * horizon:最老的仍然需要的事务  比它小的事务都已经结束、提交状态已经落盘，也不在任何活跃事务的快照中
+    * 之后它们的状态只读不写，XID文件中只记录其中回滚的事务
+    * */
+    void freeze(long horizon);
     /*关闭TM*/
     void close();
 
@@ -50,6 +66,40 @@ public interface TransactionManager {
     * 创建一个xid文件并创建TM
     * */
     public static TransactionManagerImpl create(String path){
+        File f_xid = createXidFile(path);
+        RandomAccessFile raf = openXidChannel(f_xid);
+        return new TransactionManagerImpl(f_xid, raf, raf.getChannel());
+    }
+
+    /*mapped：是否使用内存映射模式访问XID文件*/
+    public static TransactionManager create(String path, boolean mapped){
+        if(!mapped) {
+            return create(path);
+        }
+        File f_xid = createXidFile(path);
+        RandomAccessFile raf = openXidChannel(f_xid);
+        return new MappedTransactionManager(f_xid, raf, raf.getChannel());
+    }
+
+    /*
+    * 打开一个存在的xid文件
+    * */
+    public static TransactionManagerImpl open(String path){
+        File f_xid = checkXidFile(path);
+        RandomAccessFile raf = openXidChannel(f_xid);
+        return new TransactionManagerImpl(f_xid, raf, raf.getChannel());
+    }
+
+    public static TransactionManager open(String path, boolean mapped){
+        if(!mapped) {
+            return open(path);
+        }
+        File f_xid = checkXidFile(path);
+        RandomAccessFile raf = openXidChannel(f_xid);
+        return new MappedTransactionManager(f_xid, raf, raf.getChannel());
+    }
+
+    private static File createXidFile(String path){
         File f_xid = new File(path + TransactionManagerImpl.XID_SUFFIX);
         try {
             /*
@@ -69,31 +119,19 @@ public interface TransactionManager {
         if(!f_xid.canRead() || !f_xid.canWrite()){
             Panic.panic(FileCannotRWException);
         }
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-        try {
-            raf = new RandomAccessFile(f_xid, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
         /*
-        * header的大小为8字节
+        * 文件头  Magic + XidCounter(0) + FrozenXid(0) + 没有回滚的事务
         * */
-        ByteBuffer buf = ByteBuffer.wrap(new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH]);
-        try {
-            fc.position(XID_HEADER_POSITION);
-            fc.write(buf);
+        byte[] header = new XidFileHeader(0).encode();
+        try (RandomAccessFile raf = new RandomAccessFile(f_xid, "rw")) {
+            raf.getChannel().write(ByteBuffer.wrap(header), 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        return new TransactionManagerImpl(raf, fc);
+        return f_xid;
     }
 
-    /*
-    * 打开一个存在的xid文件
-    * */
-    public static TransactionManagerImpl open(String path){
+    private static File checkXidFile(String path){
         File f_xid = new File(path + TransactionManagerImpl.XID_SUFFIX);
         if(!f_xid.exists()){
             Panic.panic(FileNotExistsException);
@@ -101,14 +139,18 @@ public interface TransactionManager {
         if(!f_xid.canRead() || !f_xid.canWrite()){
             Panic.panic(FileCannotRWException);
         }
+        /*旧格式先转换成新格式*/
+        XidFileMigration.migrateIfNeeded(f_xid);
+        return f_xid;
+    }
+
+    private static RandomAccessFile openXidChannel(File f_xid){
         RandomAccessFile raf = null;
-        FileChannel fc = null;
         try {
             raf = new RandomAccessFile(f_xid, "rw");
-            fc = raf.getChannel();
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
         }
-        return new TransactionManagerImpl(raf, fc);
+        return raf;
     }
 }
@@ -3,15 +3,21 @@ package cuit.ljzhang.jydb.backend.tm;
 import cuit.ljzhang.jydb.backend.utils.Panic;
 import cuit.ljzhang.jydb.backend.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static cuit.ljzhang.jydb.common.Error.BadXIDFileException;
+import static cuit.ljzhang.jydb.common.Error.FrozenXIDException;
 
 /**
  * @ClassName TransactionManagerImpl
@@ -20,16 +26,47 @@ import static cuit.ljzhang.jydb.common.Error.BadXIDFileException;
  * @Date 2023/7/24 19:35
  * @Version 1.0
  * 长度单位：字节
+ * XID文件格式：[Header][Status]...   Header见XidFileHeader
+ *      --- Magic 8字节，区分旧格式(每个事务一个字节)  旧格式打开时先转换
+ *      --- 每个事务的状态占2位，一个字节存4个事务  xid在第(xid-FrozenXid-1)/4个字节的第(xid-1)%4组
+ *      --- 不大于FrozenXid的事务只记录回滚的，其余都是已提交
+ * 事务状态表整个放在内存中：
+ *      --- 查询只读内存中的数组，不访问文件
+ *      --- 修改先改内存，再把所在的字节写入文件(写穿)
+ *      --- 只在内存中提交的事务：另外保存一份文件中的内容，写入文件的是这一份
+ *          同一个字节中其他事务的修改不会把它提前写到文件里
+ * 并发：
+ *      --- xid由原子计数器分配，开启事务不写文件  活跃状态就是状态表中的0
+ *      --- 提交和回滚各自写入状态后合并force：没有force在进行时由当前线程force，
+ *          一次force覆盖之前所有线程写入的状态，其余线程等待
+ *      --- XidCounter只在关闭时写入文件头  打开时取文件头和最后一个写过状态的事务中的较大值
+ *          崩溃前开启、没有写过状态的事务没有留下任何数据，xid被重新分配也没有影响
+ *          写过的状态(提交、回滚)都不为0，写状态时计数器也不小于它，xid不会被重复分配
+ *          不按文件长度推算：映射模式打开过的文件被扩展到块的末尾，后面都是0
+ * 压缩：
+ *      --- 最老的活跃事务(horizon)之前的事务都已经结束，状态不再变化
+ *          把这部分状态从状态表中去掉，只在文件头中记录其中回滚的事务
+ *      --- 只在内存中提交、还没有落盘的事务不压缩：压缩后就当作已提交落盘了
+ *      --- 回滚的事务在文件头中按组记录，每组比状态表中同样多的事务小  回滚的事务再多压缩也能缩小文件
+ *      --- 写入新文件落盘后原子替换，期间不能有force在旧文件上进行
  */
 public class TransactionManagerImpl implements TransactionManager{
-    // XID文件头长度
-    static final int LEN_XID_HEADER_LENGTH = 8;
+    // 文件头的Magic
+    static final byte[] XID_MAGIC = {'J', 'Y', 'D', 'B', 'X', 'I', 'D', 3};
 
     //文件投位置 --- 保存着受管理事务的数量
-    public static final long XID_HEADER_POSITION = 0;
+    public static final long XID_HEADER_POSITION = XID_MAGIC.length;
 
-    // 每个事务的占用长度
-    private static final int XID_FIELD_SIZE = 1;
+    // 每个事务的状态占用的位数  一个字节存放的事务数
+    static final int XID_FIELD_BITS = 2;
+    static final int XIDS_PER_BYTE = 8 / XID_FIELD_BITS;
+    static final int XID_FIELD_MASK = (1 << XID_FIELD_BITS) - 1;
+
+    // 状态表初始的字节数
+    private static final int INIT_TABLE_SIZE = 1 << 10;
+
+    // 按acquire/release读写状态表中的字节  查询不加锁也能看到其他线程的修改
+    private static final VarHandle TABLE = MethodHandles.arrayElementVarHandle(byte[].class);
 
     // 事务的三种状态
     /*
@@ -41,7 +78,7 @@ public class TransactionManagerImpl implements TransactionManager{
 
     private static final byte FIELD_TRAN_COMMITTED = 1;
 
-    private static final byte FIELD_TRAN_ABORTED  = 2;
+    static final byte FIELD_TRAN_ABORTED  = 2;
 
     // 超级事务，永远为commited状态
     public static final long SUPER_XID = 0;
@@ -49,6 +86,9 @@ public class TransactionManagerImpl implements TransactionManager{
     //xid文件后缀
     static final String XID_SUFFIX = ".xid";
 
+    /*XID文件  压缩时替换*/
+    private File file;
+
     /*随机读取文件对象*/
     private RandomAccessFile raf;
 
@@ -59,83 +99,185 @@ public class TransactionManagerImpl implements TransactionManager{
     * 注意：0号超级事务的状态不需要记录
     * 需要管理的事务id是从1开始记录的
     * */
-    private long xidCounter;
+    private AtomicLong xidCounter;
+
+    /*
+    * 事务状态表
+    *   table:所有事务当前的状态  查询只读它
+    *   persisted:XID文件中的内容  只在内存中提交的事务在这里还是活跃
+    *   dataStart:文件中第一个事务状态的位置
+    * 修改都在statusLock中进行，扩容和压缩时换成新的状态表
+    * */
+    private volatile StatusTable table;
+    private byte[] persisted;
+    private long dataStart;
+    private Lock statusLock;
 
-    //锁 --- 在构造函数处初始化
-    private Lock counterLock;
+    /*
+    * 合并force
+    *   writtenSeq:写入文件的次数  在statusLock中修改
+    *   syncedSeq:force之后已经落盘的写入次数
+    * */
+    private long writtenSeq;
+    private long syncedSeq;
+    private boolean syncing;
+    private Lock syncLock;
+    private Condition synced;
 
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+    /*
+    * 状态表  压缩时整个替换，查询拿到的FrozenXid和状态总是对应的
+    *   header:FrozenXid和之前回滚的事务
+    *   bytes:FrozenXid之后事务的状态
+    * */
+    private static final class StatusTable {
+        final XidFileHeader header;
+        final byte[] bytes;
+
+        StatusTable(XidFileHeader header, byte[] bytes) {
+            this.header = header;
+            this.bytes = bytes;
+        }
+    }
+
+    TransactionManagerImpl(File file, RandomAccessFile raf, FileChannel fc) {
+        this.file = file;
         this.raf = raf;
         this.fc = fc;
-        counterLock = new ReentrantLock();
-        checkXIDCounter();
+        statusLock = new ReentrantLock();
+        syncLock = new ReentrantLock();
+        synced = syncLock.newCondition();
+        XidFileHeader header = checkXIDCounter();
+        loadTable(header);
     }
 
     /**
      * 检查XID文件是否合法
-     * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 检查Magic，读取文件头
      */
-    private void checkXIDCounter(){
+    private XidFileHeader checkXIDCounter(){
         /*真实文件长度*/
-        long fileLen = 0;
+        long fileLen = fileLength();
+        if(fileLen < XidFileHeader.LEN_FIXED){
+            Panic.panic(BadXIDFileException);
+        }
+        XidFileHeader header = XidFileHeader.read(fc);
+        this.dataStart = header.length();
+        if(fileLen < dataStart) {
+            Panic.panic(BadXIDFileException);
+        }
+        return header;
+    }
+
+    /*
+    * 把文件中的状态读入内存，恢复XidCounter
+    * xidcounter只在关闭时写入，和最后一个写过状态的事务取较大值
+    * 文件末尾全为0的部分不放进状态表
+    * */
+    private void loadTable(XidFileHeader header){
+        int length = (int) (fileLength() - dataStart);
+        byte[] t = new byte[length];
+        ByteBuffer buf = ByteBuffer.wrap(t);
         try {
-            fileLen = raf.length();
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, dataStart + buf.position()) < 0) {
+                    Panic.panic(BadXIDFileException);
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if(fileLen < LEN_XID_HEADER_LENGTH){
-            Panic.panic(BadXIDFileException);
+        int written = writtenLength(t);
+        this.xidCounter = new AtomicLong(Math.max(header.xidCounter, header.frozenXid + (long) written * XIDS_PER_BYTE));
+        t = Arrays.copyOf(t, Math.max(INIT_TABLE_SIZE, written));
+        this.persisted = t;
+        this.table = new StatusTable(header, Arrays.copyOf(t, t.length));
+    }
+
+    /*从后往前找最后一个不为0的字节  返回之前事务状态的字节数*/
+    private static int writtenLength(byte[] statuses){
+        for(int i = statuses.length - 1; i >= 0; i--) {
+            if(statuses[i] != 0) {
+                return i + 1;
+            }
         }
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+        return 0;
+    }
+
+    private long fileLength(){
         try {
-            /*移动到文件头 偏移量为0字节*/
-            fc.position(0);
-            /*将文件表头信息读取到buf*/
-            fc.read(buf);
+            return fc.size();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        /*读取到了XID文件头部存的文件大小：可以计算出最新事务的id*/
-        this.xidCounter = Parser.parseLong(buf.array());
-        /*需要管理的事务id是从1开始记录的*/
-        long end = getXidPosition(this.xidCounter + 1);
-        /*比较计算地址长度 和 文件实际长度*/
-        if(end != fileLen){
-            Panic.panic(BadXIDFileException);
-        }
+        return 0;
     }
 
-    // 根据事务xid取得其在xid文件中对应的位置
-    private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    // 事务xid的状态所在的字节在状态表中的下标
+    private static int byteIndex(StatusTable t, long xid) {
+        return (int) ((xid - t.header.frozenXid - 1) / XIDS_PER_BYTE);
     }
 
+    // 事务xid的状态在字节中的位置
+    private static int bitShift(long xid) {
+        return (int) ((xid - 1) % XIDS_PER_BYTE) * XID_FIELD_BITS;
+    }
+
+    // 根据事务xid取得其在xid文件中对应的位置
+    private long getXidPosition(StatusTable t, long xid) {
+        return dataStart + byteIndex(t, xid);
+    }
 
-    /*开启一个事务 并返回XID*/
+    /*
+    * 开启一个事务 并返回XID
+    * 原子计数器分配xid，不写文件：活跃状态就是状态表中的初始值
+    * */
     @Override
     public long begin() {
-        /*
-        * 为什么要加锁：
-        *   操作共享资源xid，并将修改内容写入到文件中
-        *   必须保证线程是安全的
-        * */
-        counterLock.lock();
-        try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
-        } finally {
-            counterLock.lock();
-        }
+        return xidCounter.incrementAndGet();
     }
 
+    @Override
+    public long nextXid() {
+        return xidCounter.get() + 1;
+    }
 
     @Override
     public void commit(long xid) {
         updateXID(xid, FIELD_TRAN_COMMITTED);
     }
 
+    @Override
+    public void commitInMemory(long xid) {
+        statusLock.lock();
+        try {
+            setStatus(xid, FIELD_TRAN_COMMITTED, false);
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    @Override
+    public void commit(long[] xids) {
+        if(xids.length == 0) {
+            return;
+        }
+        long seq;
+        long maxXid = 0;
+        statusLock.lock();
+        try {
+            for(long xid : xids) {
+                setStatus(xid, FIELD_TRAN_COMMITTED, true);
+                writeXID(xid);
+                maxXid = Math.max(maxXid, xid);
+            }
+            seq = ++writtenSeq;
+        } finally {
+            statusLock.unlock();
+        }
+        xidCounter.accumulateAndGet(maxXid, Math::max);
+        sync(seq);
+    }
+
     @Override
     public void abort(long xid) {
         updateXID(xid, FIELD_TRAN_ABORTED);
@@ -158,6 +300,14 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public void close() {
+        /*写入XidCounter*/
+        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter.get()));
+        try {
+            fc.write(buf, XID_HEADER_POSITION);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
         /*关闭文件读取流*/
         try {
             fc.close();
@@ -167,58 +317,199 @@ public class TransactionManagerImpl implements TransactionManager{
         }
     }
 
-    /*更新xid事务的状态*/
-    private void updateXID(long xid, byte status){
-        long offset = getXidPosition(xid);
-        byte[] data = new byte[XID_FIELD_SIZE];
-        data[0] = status;
-        /*将字节数组保证为ByteBuffer配合FileChannel进行文件的写入*/
-        ByteBuffer buf = ByteBuffer.wrap(data);
+    @Override
+    public void freeze(long horizon) {
+        /*等待正在进行的force结束，并阻止新的force  替换文件之后旧的FileChannel不能再使用*/
+        syncLock.lock();
         try {
-            /*将状态写入文件*/
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while(syncing) {
+                synced.awaitUninterruptibly();
+            }
+            syncing = true;
+        } finally {
+            syncLock.unlock();
         }
+        long seq = 0;
         try {
-            /*
-            * metaData:是否写入文件的元数据
-            * 文件的元数据：与文件相关的附加信息，包含文件的属性和描述信息
-            * */
-            fc.force(false);
+            statusLock.lock();
+            try {
+                seq = compact(horizon);
+            } finally {
+                statusLock.unlock();
+            }
+        } finally {
+            syncLock.lock();
+            syncing = false;
+            /*新文件已经落盘  包含了之前所有的写入*/
+            syncedSeq = Math.max(syncedSeq, seq);
+            synced.signalAll();
+            syncLock.unlock();
+        }
+    }
+
+    /*
+    * 压缩horizon之前的事务状态  在statusLock中调用
+    * 只压缩整字节：FrozenXid之后的状态在字节中的位置不变，剩下的字节原样写入新文件
+    * 返回压缩时已经写入文件的次数  没有压缩时返回0
+    * */
+    private long compact(long horizon){
+        StatusTable t = table;
+        long base = t.header.frozenXid;
+        long frozen = (horizon - 1) / XIDS_PER_BYTE * XIDS_PER_BYTE;
+        int count = (int) Math.min(Math.max(frozen - base, 0) / XIDS_PER_BYTE, t.bytes.length);
+        /*遇到只在内存中提交的事务就停下*/
+        for(int i = 0; i < count; i++) {
+            if(t.bytes[i] != persisted[i]) {
+                count = i;
+                break;
+            }
+        }
+        if(count == 0) {
+            return 0;
+        }
+        XidFileHeader header = t.header.freeze(xidCounter.get(), persisted, count);
+        /*文件末尾全为0的部分不写入新文件*/
+        int written = writtenLength(persisted);
+        XidFileHeader.rewrite(file, header, persisted, count, Math.max(written - count, 0));
+        try {
+            fc.close();
+            raf.close();
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
         } catch (IOException e) {
             Panic.panic(e);
         }
+        dataStart = header.length();
+        int size = Math.max(persisted.length - count, INIT_TABLE_SIZE);
+        persisted = Arrays.copyOfRange(persisted, count, count + size);
+        table = new StatusTable(header, Arrays.copyOfRange(t.bytes, count, count + size));
+        return writtenSeq;
     }
 
-    //将XID+1,并更新XID Header
-    private void incrXIDCounter(){
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    /*
+    * 更新xid事务的状态  写入文件并等待落盘
+    * 计数器不小于写过状态的xid：恢复时回滚的事务可能从没写过状态，它的xid不能再分配出去
+    * */
+    private void updateXID(long xid, byte status){
+        long seq;
+        statusLock.lock();
         try {
-            fc.position(XID_HEADER_POSITION);
-            fc.write(buf);
+            setStatus(xid, status, true);
+            writeXID(xid);
+            seq = ++writtenSeq;
+        } finally {
+            statusLock.unlock();
+        }
+        xidCounter.accumulateAndGet(xid, Math::max);
+        sync(seq);
+    }
+
+    /*
+    * 等待第seq次写入落盘
+    * 没有force在进行时当前线程force，一次覆盖之前所有的写入  否则等待正在进行的force
+    * */
+    private void sync(long seq){
+        syncLock.lock();
+        try {
+            while(syncedSeq < seq) {
+                if(syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target;
+                statusLock.lock();
+                try {
+                    target = writtenSeq;
+                } finally {
+                    statusLock.unlock();
+                }
+                syncLock.unlock();
+                try {
+                    force();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                }
+                syncedSeq = Math.max(syncedSeq, target);
+                synced.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /*
+    * 修改状态表中xid的状态  在statusLock中调用
+    * persist:是否同时修改文件中的内容 --- 否则只在内存中修改
+    * */
+    private void setStatus(long xid, byte status, boolean persist){
+        StatusTable st = table;
+        /*压缩掉的事务状态不再变化*/
+        if(xid <= st.header.frozenXid) {
+            Panic.panic(FrozenXIDException);
+        }
+        int index = byteIndex(st, xid);
+        int shift = bitShift(xid);
+        int mask = ~(XID_FIELD_MASK << shift);
+        byte[] t = st.bytes;
+        if(index >= t.length) {
+            /*扩容  新数组准备好之后再替换，查询读到旧数组时结果也是对的*/
+            int size = Math.max(t.length * 2, index + 1);
+            t = Arrays.copyOf(t, size);
+            persisted = Arrays.copyOf(persisted, size);
+            table = new StatusTable(st.header, t);
+        }
+        TABLE.setRelease(t, index, (byte) ((t[index] & mask) | (status << shift)));
+        if(persist) {
+            persisted[index] = (byte) ((persisted[index] & mask) | (status << shift));
+        }
+    }
+
+    /*
+    * 把xid所在的字节写入文件  不force  在statusLock中调用
+    * 按位置写，不移动文件指针  可以和其他线程的读写并发
+    * */
+    private void writeXID(long xid){
+        StatusTable t = table;
+        ByteBuffer buf = ByteBuffer.wrap(persisted, byteIndex(t, xid), 1);
+        try {
+            /*将状态写入文件*/
+            fc.write(buf, getXidPosition(t, xid));
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
+
+    private void force(){
         try {
+            /*
+            * metaData:是否写入文件的元数据
+            * 文件的元数据：与文件相关的附加信息，包含文件的属性和描述信息
+            * */
             fc.force(false);
         } catch (IOException e) {
-            e.printStackTrace();
+            Panic.panic(e);
         }
     }
 
-    /*获取xid事务是否处于status状态*/
+    /*获取xid事务是否处于status状态  只读内存中的状态表*/
     public Boolean checkXID(long xid, byte status){
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+        /*超级事务永远是已提交*/
+        if(xid == SUPER_XID) {
+            return status == FIELD_TRAN_COMMITTED;
+        }
+        StatusTable t = table;
+        /*压缩掉的事务  不是回滚就是已提交*/
+        if(xid <= t.header.frozenXid) {
+            return status == (t.header.isAborted(xid) ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED);
+        }
+        int index = byteIndex(t, xid);
+        /*还没有开启的事务*/
+        if(index >= t.bytes.length) {
+            return status == FIELD_TRAN_ACTIVE;
         }
-        return buf.array()[0] == status;
+        byte b = (byte) TABLE.getAcquire(t.bytes, index);
+        return ((b >> bitShift(xid)) & XID_FIELD_MASK) == status;
     }
 }
@@ -0,0 +1,248 @@
+package cuit.ljzhang.jydb.backend.tm;
+
+import cuit.ljzhang.jydb.backend.utils.FileUtil;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+import cuit.ljzhang.jydb.backend.utils.Parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static cuit.ljzhang.jydb.common.Error.BadXIDFileException;
+
+/**
+ * @ClassName XidFileHeader
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 21:40
+ * @Version 1.0
+ * XID文件头：[Magic][XidCounter][FrozenXid][AbortedLength][AbortedBlock]...
+ *      --- FrozenXid：不大于它的事务都已经结束，状态不再变化，不再逐个记录
+ *          其中回滚的事务记在AbortedBlock中，其余都是已提交
+ *      --- FrozenXid是XIDS_PER_BYTE的整数倍  之后的事务状态和压缩前在同一个字节中的位置相同
+ *      --- AbortedLength：AbortedBlock一共的字节数
+ *      --- 文件头之后是FrozenXid之后每个事务的状态
+ * AbortedBlock：[Block][Count][Offset]... 或 [Block][Count][Bitmap]
+ *      --- 事务按BLOCK_XIDS个一组，只记录有回滚事务的组  从小到大
+ *          Block 8字节：第几组，xid在第(xid-1)/BLOCK_XIDS组的第(xid-1)%BLOCK_XIDS位
+ *          Count 1字节：组中回滚的事务数 - 1
+ *      --- 回滚的事务少于BITMAP_BYTES个时逐个记录组内的位置，每个1字节
+ *          否则记录整组的位图  一组最多占LEN_BLOCK + BITMAP_BYTES字节
+ *      --- 压缩掉的每BLOCK_XIDS个事务最多占41字节，比状态表中的64字节小
+ *          没有回滚事务的组不占空间，只有提交的事务时文件头不会增长
+ */
+final class XidFileHeader {
+
+    private static final int OF_COUNTER = TransactionManagerImpl.XID_MAGIC.length;
+    private static final int OF_FROZEN = OF_COUNTER + 8;
+    private static final int OF_ABORTED_LENGTH = OF_FROZEN + 8;
+
+    // 文件头中长度固定的部分
+    static final int LEN_FIXED = OF_ABORTED_LENGTH + 4;
+
+    // 每组的事务数  组内的位置正好用一个字节表示
+    private static final int BLOCK_XIDS = 256;
+    // 一组的位图占用的long数和字节数
+    private static final int BITMAP_WORDS = BLOCK_XIDS / 64;
+    private static final int BITMAP_BYTES = BLOCK_XIDS / 8;
+    // 每组Block和Count的长度
+    private static final int LEN_BLOCK = 8 + 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    final long xidCounter;
+    final long frozenXid;
+    /*
+    * FrozenXid之前回滚的事务
+    *   blocks:有回滚事务的组  从小到大
+    *   bitmaps:第i组的位图在[i * BITMAP_WORDS, (i + 1) * BITMAP_WORDS)
+    * */
+    private final long[] blocks;
+    private final long[] bitmaps;
+    private final int abortedLength;
+
+    /*没有压缩过的文件头*/
+    XidFileHeader(long xidCounter) {
+        this(xidCounter, 0, new long[0], new long[0]);
+    }
+
+    private XidFileHeader(long xidCounter, long frozenXid, long[] blocks, long[] bitmaps) {
+        this.xidCounter = xidCounter;
+        this.frozenXid = frozenXid;
+        this.blocks = blocks;
+        this.bitmaps = bitmaps;
+        int len = 0;
+        for(int i = 0; i < blocks.length; i++) {
+            len += blockLength(abortedCount(i));
+        }
+        this.abortedLength = len;
+    }
+
+    /*文件头的长度  也是第一个事务状态的位置*/
+    int length() {
+        return LEN_FIXED + abortedLength;
+    }
+
+    /*xid不大于FrozenXid时  是否是回滚的事务*/
+    boolean isAborted(long xid) {
+        int i = Arrays.binarySearch(blocks, (xid - 1) / BLOCK_XIDS);
+        if(i < 0) {
+            return false;
+        }
+        int bit = (int) ((xid - 1) % BLOCK_XIDS);
+        return (bitmaps[i * BITMAP_WORDS + bit / 64] & (1L << (bit % 64))) != 0;
+    }
+
+    /*
+    * 压缩statuses中前count个字节之后的文件头
+    * statuses:FrozenXid之后事务的状态  其中回滚的事务加入AbortedBlock
+    * */
+    XidFileHeader freeze(long xidCounter, byte[] statuses, int count) {
+        long[] b = Arrays.copyOf(blocks, blocks.length + 1);
+        long[] bm = Arrays.copyOf(bitmaps, b.length * BITMAP_WORDS);
+        int size = blocks.length;
+        for(int i = 0; i < count; i++) {
+            for(int slot = 0; slot < TransactionManagerImpl.XIDS_PER_BYTE; slot++) {
+                int status = (statuses[i] >> (slot * TransactionManagerImpl.XID_FIELD_BITS)) & TransactionManagerImpl.XID_FIELD_MASK;
+                if(status != TransactionManagerImpl.FIELD_TRAN_ABORTED) {
+                    continue;
+                }
+                long xid = frozenXid + (long) i * TransactionManagerImpl.XIDS_PER_BYTE + slot + 1;
+                long block = (xid - 1) / BLOCK_XIDS;
+                /*xid从小到大  只可能落在最后一组或新的一组*/
+                if(size == 0 || b[size - 1] != block) {
+                    if(size == b.length) {
+                        b = Arrays.copyOf(b, size * 2);
+                        bm = Arrays.copyOf(bm, b.length * BITMAP_WORDS);
+                    }
+                    b[size++] = block;
+                }
+                int bit = (int) ((xid - 1) % BLOCK_XIDS);
+                bm[(size - 1) * BITMAP_WORDS + bit / 64] |= 1L << (bit % 64);
+            }
+        }
+        return new XidFileHeader(xidCounter, frozenXid + (long) count * TransactionManagerImpl.XIDS_PER_BYTE,
+                Arrays.copyOf(b, size), Arrays.copyOf(bm, size * BITMAP_WORDS));
+    }
+
+    // 第i组中回滚的事务数
+    private int abortedCount(int i) {
+        int n = 0;
+        for(int w = 0; w < BITMAP_WORDS; w++) {
+            n += Long.bitCount(bitmaps[i * BITMAP_WORDS + w]);
+        }
+        return n;
+    }
+
+    // 有n个回滚事务的组的长度
+    private static int blockLength(int n) {
+        return LEN_BLOCK + Math.min(n, BITMAP_BYTES);
+    }
+
+    byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(length());
+        buf.put(TransactionManagerImpl.XID_MAGIC);
+        buf.putLong(xidCounter);
+        buf.putLong(frozenXid);
+        buf.putInt(abortedLength);
+        for(int i = 0; i < blocks.length; i++) {
+            int n = abortedCount(i);
+            buf.putLong(blocks[i]);
+            buf.put((byte) (n - 1));
+            if(n < BITMAP_BYTES) {
+                for(int bit = 0; bit < BLOCK_XIDS; bit++) {
+                    if((bitmaps[i * BITMAP_WORDS + bit / 64] & (1L << (bit % 64))) != 0) {
+                        buf.put((byte) bit);
+                    }
+                }
+            } else {
+                for(int w = 0; w < BITMAP_WORDS; w++) {
+                    buf.putLong(bitmaps[i * BITMAP_WORDS + w]);
+                }
+            }
+        }
+        return buf.array();
+    }
+
+    /*读取并检查文件头*/
+    static XidFileHeader read(FileChannel fc) {
+        ByteBuffer fixed = ByteBuffer.allocate(LEN_FIXED);
+        readFully(fc, fixed, 0);
+        byte[] raw = fixed.array();
+        if(!Arrays.equals(Arrays.copyOf(raw, OF_COUNTER), TransactionManagerImpl.XID_MAGIC)) {
+            Panic.panic(BadXIDFileException);
+        }
+        long counter = Parser.parseLong(raw, OF_COUNTER);
+        long frozen = Parser.parseLong(raw, OF_FROZEN);
+        int length = fixed.getInt(OF_ABORTED_LENGTH);
+        if(length < 0 || frozen < 0 || frozen % TransactionManagerImpl.XIDS_PER_BYTE != 0) {
+            Panic.panic(BadXIDFileException);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(fc, buf, LEN_FIXED);
+        buf.flip();
+        long[] b = new long[length / LEN_BLOCK];
+        long[] bm = new long[b.length * BITMAP_WORDS];
+        int size = 0;
+        while(buf.hasRemaining()) {
+            if(buf.remaining() < LEN_BLOCK) {
+                Panic.panic(BadXIDFileException);
+            }
+            long block = buf.getLong();
+            int n = (buf.get() & 0xFF) + 1;
+            if(block < 0 || (size > 0 && block <= b[size - 1]) || buf.remaining() < Math.min(n, BITMAP_BYTES)) {
+                Panic.panic(BadXIDFileException);
+            }
+            b[size] = block;
+            if(n < BITMAP_BYTES) {
+                for(int k = 0; k < n; k++) {
+                    int bit = buf.get() & 0xFF;
+                    bm[size * BITMAP_WORDS + bit / 64] |= 1L << (bit % 64);
+                }
+            } else {
+                for(int w = 0; w < BITMAP_WORDS; w++) {
+                    bm[size * BITMAP_WORDS + w] = buf.getLong();
+                }
+            }
+            size++;
+        }
+        XidFileHeader header = new XidFileHeader(counter, frozen, Arrays.copyOf(b, size), Arrays.copyOf(bm, size * BITMAP_WORDS));
+        /*Count和实际的位置数不一致*/
+        if(header.abortedLength != length) {
+            Panic.panic(BadXIDFileException);
+        }
+        return header;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long position) {
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, position + buf.position()) < 0) {
+                    Panic.panic(BadXIDFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /*
+    * 用新的文件头和statuses[off, off + len)替换XID文件
+    * 写入临时文件落盘之后原子替换  中途崩溃时原文件不受影响
+    * 返回时目录也已落盘，之后写入新文件的状态不会因为断电回到原文件
+    * */
+    static void rewrite(File f, XidFileHeader header, byte[] statuses, int off, int len) {
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(header.encode());
+            out.write(statuses, off, len);
+            out.getChannel().force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        FileUtil.replace(tmp, f);
+    }
+}
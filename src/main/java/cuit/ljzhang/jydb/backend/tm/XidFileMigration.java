@@ -0,0 +1,114 @@
+package cuit.ljzhang.jydb.backend.tm;
+
+import cuit.ljzhang.jydb.backend.utils.FileUtil;
+import cuit.ljzhang.jydb.backend.utils.Panic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static cuit.ljzhang.jydb.common.Error.BadXIDFileException;
+
+/**
+ * @ClassName XidFileMigration
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 21:00
+ * @Version 1.0
+ * 旧格式XID文件的转换：
+ *      旧格式 [XidCounter][Status]...  每个事务的状态占一个字节
+ *      --- 按新格式每个事务2位重新写入临时文件，落盘后原子替换原文件
+ *          转换中途崩溃时原文件不受影响，下次打开重新转换
+ *      --- 旧格式开启事务时先写状态再写XidCounter，文件可能比XidCounter多一个字节，多出的忽略
+ *      第2版 [Magic][XidCounter][Status]...  没有FrozenXid
+ *      --- 状态的排列相同，换成新的文件头，状态原样拷贝
+ */
+final class XidFileMigration {
+
+    /*第2版的Magic 和 文件头长度*/
+    private static final byte[] XID_MAGIC_V2 = {'J', 'Y', 'D', 'B', 'X', 'I', 'D', 2};
+    private static final int V2_HEADER_LENGTH = XID_MAGIC_V2.length + 8;
+
+    /*旧格式 文件头长度 和 每个事务的长度*/
+    private static final int LEGACY_HEADER_LENGTH = 8;
+    private static final int LEGACY_FIELD_SIZE = 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private XidFileMigration() {}
+
+    /*文件头不是新格式时转换XID文件*/
+    static void migrateIfNeeded(File f) {
+        byte[] magic = new byte[TransactionManagerImpl.XID_MAGIC.length];
+        long v2Counter = -1;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            if(raf.length() >= magic.length) {
+                raf.readFully(magic);
+                if(Arrays.equals(magic, TransactionManagerImpl.XID_MAGIC)) {
+                    return;
+                }
+                if(Arrays.equals(magic, XID_MAGIC_V2) && raf.length() >= V2_HEADER_LENGTH) {
+                    v2Counter = raf.readLong();
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(v2Counter >= 0) {
+            migrateV2(f, v2Counter);
+        } else {
+            migrate(f);
+        }
+    }
+
+    private static void migrateV2(File f, long xidCounter) {
+        byte[] statuses = null;
+        try {
+            byte[] raw = Files.readAllBytes(f.toPath());
+            statuses = Arrays.copyOfRange(raw, V2_HEADER_LENGTH, raw.length);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        XidFileHeader header = new XidFileHeader(xidCounter);
+        XidFileHeader.rewrite(f, header, statuses, 0, statuses.length);
+    }
+
+    private static void migrate(File f) {
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        if(f.length() < LEGACY_HEADER_LENGTH) {
+            Panic.panic(BadXIDFileException);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+             FileOutputStream fos = new FileOutputStream(tmp);
+             BufferedOutputStream out = new BufferedOutputStream(fos, 1 << 16)) {
+            long xidCounter = in.readLong();
+            if(f.length() < LEGACY_HEADER_LENGTH + xidCounter * LEGACY_FIELD_SIZE) {
+                Panic.panic(BadXIDFileException);
+            }
+            out.write(new XidFileHeader(xidCounter).encode());
+            /*每XIDS_PER_BYTE个事务拼成一个字节*/
+            int packed = 0;
+            for(long xid = 1; xid <= xidCounter; xid++) {
+                int slot = (int) ((xid - 1) % TransactionManagerImpl.XIDS_PER_BYTE);
+                packed |= (in.readByte() & TransactionManagerImpl.XID_FIELD_MASK) << (slot * TransactionManagerImpl.XID_FIELD_BITS);
+                if(slot == TransactionManagerImpl.XIDS_PER_BYTE - 1 || xid == xidCounter) {
+                    out.write(packed);
+                    packed = 0;
+                }
+            }
+            out.flush();
+            fos.getChannel().force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        /*目录也要落盘  否则断电后可能回到转换前的文件，之后写入的状态丢失*/
+        FileUtil.replace(tmp, f);
+    }
+}
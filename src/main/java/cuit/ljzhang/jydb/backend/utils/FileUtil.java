@@ -0,0 +1,41 @@
+package cuit.ljzhang.jydb.backend.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class FileUtil {
+
+    /*
+    * 用from原子替换to  替换之后目录落盘
+    * 目录不落盘时断电后目录项可能还指向原文件，之后写入新文件的内容都会丢失
+    * */
+    public static void replace(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        forceDirectory(to);
+    }
+
+    /*f所在目录落盘  新建、重命名文件之后调用*/
+    public static void forceDirectory(File f) {
+        File dir = f.getAbsoluteFile().getParentFile();
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            /*有的平台(Windows)不能打开目录  这时目录项由文件系统自己保证*/
+            return;
+        }
+        try (FileChannel c = fc) {
+            c.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
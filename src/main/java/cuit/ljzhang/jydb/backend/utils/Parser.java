@@ -16,6 +16,11 @@ public class Parser {
         return buffer.getShort();
     }
 
+    /*从buf[off]开始解析  不需要先拷贝出来*/
+    public static short parseShort(byte[] buf, int off) {
+        return ByteBuffer.wrap(buf, off, 2).getShort();
+    }
+
     public static byte[] int2Byte(int value) {
         return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
     }
@@ -25,11 +30,19 @@ public class Parser {
         return buffer.getInt();
     }
 
+    public static int parseInt(byte[] buf, int off) {
+        return ByteBuffer.wrap(buf, off, 4).getInt();
+    }
+
     public static long parseLong(byte[] buf) {
         ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
         return buffer.getLong();
     }
 
+    public static long parseLong(byte[] buf, int off) {
+        return ByteBuffer.wrap(buf, off, 8).getLong();
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
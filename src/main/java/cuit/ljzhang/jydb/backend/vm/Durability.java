@@ -0,0 +1,30 @@
+package cuit.ljzhang.jydb.backend.vm;
+
+/**
+ * @ClassName Durability
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 19:40
+ * @Version 1.0
+ * 提交的持久化级别：
+ *      --- 不论哪个级别，事务的日志都先于提交状态落盘
+ *          崩溃后XID文件中已提交的事务，日志一定完整，恢复结果是一致的
+ *      --- 级别只决定commit返回时提交是否已经落盘，以及由谁来落盘
+ */
+public enum Durability {
+
+    /*提交的线程自己刷日志、写提交状态  返回时已经落盘*/
+    SYNC,
+
+    /*
+    * 交给后台提交线程，等一个很短的窗口攒一批提交，一起刷日志、一起force XID文件
+    * 返回时已经落盘
+    * */
+    GROUP,
+
+    /*
+    * 提交状态只记在内存中，立即返回
+    * 后台提交线程最多ASYNC_FLUSH_INTERVAL之后落盘  崩溃时丢失的事务按未提交回滚
+    * */
+    ASYNC
+}
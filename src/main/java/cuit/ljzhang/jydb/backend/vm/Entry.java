@@ -41,9 +41,13 @@ public class Entry {
 
     /*
     * 加载entry
+    * 记录已经失效(插入它的事务被回滚)时返回null
     * */
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem dataItem = ((VersionManagerImpl)(vm)).dm.read(uid);
+        if(dataItem == null) {
+            return null;
+        }
         return newEntry(vm, dataItem, uid);
     }
 
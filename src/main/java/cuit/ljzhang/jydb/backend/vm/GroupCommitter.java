@@ -0,0 +1,177 @@
+package cuit.ljzhang.jydb.backend.vm;
+
+import cuit.ljzhang.jydb.backend.common.primitive.LongList;
+import cuit.ljzhang.jydb.backend.dm.DataManager;
+import cuit.ljzhang.jydb.backend.tm.TransactionManager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @ClassName GroupCommitter
+ * @Description
+ * @Author ljzhang
+ * @Date 2026/10/18 19:50
+ * @Version 1.0
+ * GROUP和ASYNC级别的提交：
+ *      --- 提交时先在TM中把事务标记为内存中已提交，再放入待落盘队列
+ *      --- 后台提交线程取走整个队列：先把这些事务的日志刷盘，再一次性写入提交状态、force一次
+ *          --- 有GROUP级别的提交在等待时，等GROUP_COMMIT_WINDOW攒一批
+ *          --- 只有ASYNC级别的提交时，最多每ASYNC_FLUSH_INTERVAL落盘一次
+ *      --- 日志落盘之后才写提交状态，XID文件中已提交的事务日志一定完整
+ *      --- SYNC级别的提交在写自己的提交状态之前调用persist()，先落盘队列中的事务：
+ *          它可能读到过这些事务的修改，不能出现它已提交、它依赖的事务却丢失的情况
+ */
+class GroupCommitter {
+
+    /*GROUP级别攒一批提交的等待时间 微秒*/
+    private static final long GROUP_COMMIT_WINDOW = 500;
+
+    /*ASYNC级别最长的落盘间隔 毫秒*/
+    private static final long ASYNC_FLUSH_INTERVAL = 10;
+
+    private final TransactionManager tm;
+    private final DataManager dm;
+
+    private final Lock lock;
+    /*有GROUP级别的提交到来或者关闭*/
+    private final Condition work;
+    /*一批提交落盘完成*/
+    private final Condition durable;
+
+    /*待落盘的事务  按提交顺序*/
+    private LongList pending;
+    /*进入队列的提交数 和 已经落盘的提交数  GROUP级别用来判断自己是否已经落盘*/
+    private long enqueued;
+    private long persisted;
+    private int groupWaiters;
+    private boolean closed;
+
+    /*同一时刻只有一个线程在落盘  保证一批一批按顺序落盘*/
+    private final Lock persistLock;
+
+    private final Thread committer;
+
+    GroupCommitter(TransactionManager tm, DataManager dm) {
+        this.tm = tm;
+        this.dm = dm;
+        this.lock = new ReentrantLock();
+        this.work = lock.newCondition();
+        this.durable = lock.newCondition();
+        this.pending = new LongList();
+        this.persistLock = new ReentrantLock();
+        this.committer = new Thread(this::commitLoop, "jydb-group-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /*
+    * GROUP或ASYNC级别提交xid  调用前已经在TM中标记为内存中已提交
+    * GROUP级别等到提交落盘之后才返回
+    * */
+    void commit(long xid, Durability durability) {
+        lock.lock();
+        try {
+            pending.add(xid);
+            long seq = ++enqueued;
+            if(durability != Durability.GROUP) {
+                return;
+            }
+            if(groupWaiters++ == 0) {
+                work.signal();
+            }
+            try {
+                while(persisted < seq) {
+                    durable.awaitUninterruptibly();
+                }
+            } finally {
+                groupWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*把队列中所有的提交落盘*/
+    void persist() {
+        persistLock.lock();
+        try {
+            long[] xids;
+            long seq;
+            lock.lock();
+            try {
+                if(pending.isEmpty()) {
+                    return;
+                }
+                xids = pending.toArray();
+                pending.clear();
+                seq = enqueued;
+            } finally {
+                lock.unlock();
+            }
+            /*先刷日志  日志是顺序的，刷到最大的LSN时前面的都已经落盘*/
+            for(long xid : xids) {
+                dm.flushLog(xid);
+            }
+            tm.commit(xids);
+            for(long xid : xids) {
+                dm.forgetLog(xid);
+            }
+            lock.lock();
+            try {
+                persisted = seq;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            persistLock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while(true) {
+            boolean group;
+            lock.lock();
+            try {
+                if(!closed && groupWaiters == 0) {
+                    try {
+                        work.await(ASYNC_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if(closed) {
+                    break;
+                }
+                group = groupWaiters > 0;
+            } finally {
+                lock.unlock();
+            }
+            /*等一小段时间  让同时提交的事务进入同一批*/
+            if(group) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(GROUP_COMMIT_WINDOW));
+            }
+            persist();
+        }
+        persist();
+    }
+
+    /*落盘剩下的提交  停止提交线程*/
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
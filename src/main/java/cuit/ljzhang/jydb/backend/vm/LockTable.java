@@ -1,6 +1,10 @@
 package cuit.ljzhang.jydb.backend.vm;
 
-import java.util.*;
+import cuit.ljzhang.jydb.backend.common.primitive.LongIntHashMap;
+import cuit.ljzhang.jydb.backend.common.primitive.LongList;
+import cuit.ljzhang.jydb.backend.common.primitive.LongLongHashMap;
+import cuit.ljzhang.jydb.backend.common.primitive.LongObjectHashMap;
+
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,36 +18,41 @@ import static cuit.ljzhang.jydb.common.Error.DeadlockException;
  * @Version 1.0
  * 维护的依赖等待图
  *      ---进行死锁检测
+ *      ---xid、uid都不装箱，使用long专用的hash表和列表
  */
 public class LockTable  {
 
+    /*u2x中表示uid没有被持有*/
+    private static final long NO_XID = -1;
+
     /*某个XID已经获得的资源的UID列表*/
-    private Map<Long, List<Long>> x2u;
+    private LongObjectHashMap<LongList> x2u;
 
     /* UID被某个XID持有 */
-    private Map<Long, Long> u2x;
+    private LongLongHashMap u2x;
 
     /* 正在等待 UID 的 XID 列表 */
-    private Map<Long, List<Long>> wait;
+    private LongObjectHashMap<LongList> wait;
 
     /* 正在等待资源的XID的锁 */
-    private Map<Long, Lock> waitLock;
+    private LongObjectHashMap<Lock> waitLock;
 
     /* XID正在等待的UID列表 */
-    private Map<Long, List<Long>> waitU;
+    private LongObjectHashMap<LongList> waitU;
 
     private Lock lock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
+        x2u = new LongObjectHashMap<>();
+        u2x = new LongLongHashMap();
+        wait = new LongObjectHashMap<>();
+        waitLock = new LongObjectHashMap<>();
+        waitU = new LongObjectHashMap<>();
+        xidStamp = new LongIntHashMap();
         lock = new ReentrantLock();
     }
 
-    private Map<Long, Integer> xidStamp;
+    private LongIntHashMap xidStamp;
 
     /* 时间戳 -- 用于标记 */
     private int stamp;
@@ -87,12 +96,12 @@ public class LockTable  {
 
     /* 死锁检测 */
     public boolean hasDeadLock(){
-        xidStamp = new HashMap<>();
+        xidStamp.clear();
         stamp = 1;
-        for(Long xid : x2u.keySet()){
-            Integer xid_stamp = xidStamp.get(xid);
+        for(long xid : x2u.keys()){
+            int xid_stamp = xidStamp.get(xid, 0);
             /*已经搜索过的节点*/
-            if(xid_stamp != null && xid_stamp > 0){
+            if(xid_stamp > 0){
                 continue;
             }
             stamp++;
@@ -111,19 +120,19 @@ public class LockTable  {
     *       --- 但是需要额外维护入度
     * */
     public boolean dfs(long xid){
-        Integer stp = xidStamp.get(xid);
-        if(stp != null && stp == stamp)
+        int stp = xidStamp.get(xid, 0);
+        if(stp != 0 && stp == stamp)
             return true;
-        if(stp != null && stp < stamp){
+        if(stp != 0 && stp < stamp){
             return false;
         }
         xidStamp.put(xid, stamp);
-        List<Long> uids = waitU.get(xid);
+        LongList uids = waitU.get(xid);
         if(uids == null)
             return false;
-        for(Long uid : uids){
-            Long next_id = u2x.get(uid);
-            assert next_id != null;
+        for(int i = 0; i < uids.size(); i++){
+            long next_id = u2x.get(uids.get(i), NO_XID);
+            assert next_id != NO_XID;
             if(dfs(next_id))
                 return true;
         }
@@ -132,51 +141,39 @@ public class LockTable  {
 
     /*更新list的几个操作*/
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long id0, long id1) {
-        List<Long> l = listMap.get(id0);
+    private void removeFromList(LongObjectHashMap<LongList> listMap, long id0, long id1) {
+        LongList l = listMap.get(id0);
         if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == id1) {
-                i.remove();
-                break;
-            }
-        }
+        l.removeValue(id1);
         if(l.size() == 0) {
             listMap.remove(id0);
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long id0, long id1) {
-        if(!listMap.containsKey(id0)) {
-            listMap.put(id0, new ArrayList<>());
+    private void putIntoList(LongObjectHashMap<LongList> listMap, long id0, long id1) {
+        LongList l = listMap.get(id0);
+        if(l == null) {
+            l = new LongList();
+            listMap.put(id0, l);
         }
-        listMap.get(id0).add(0, id1);
+        l.add(0, id1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long id0, long id1) {
-        List<Long> l = listMap.get(id0);
+    private boolean isInList(LongObjectHashMap<LongList> listMap, long id0, long id1) {
+        LongList l = listMap.get(id0);
         if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == id1) {
-                return true;
-            }
-        }
-        return false;
+        return l.contains(id1);
     }
 
     /*事务提交之后， 需要释放他的uid资源*/
     public void remove(long xid) {
         lock.lock();
         try {
-            List<Long> l = x2u.get(xid);
+            LongList l = x2u.get(xid);
             if(l != null) {
                 /*需要释放xid占用的uid资源*/
                 while(l.size() > 0) {
-                    Long uid = l.remove(0);
+                    long uid = l.removeAt(0);
                     selectNewXID(uid);
                 }
             }
@@ -198,11 +195,11 @@ public class LockTable  {
     public void selectNewXID(long uid){
         /*移除uid当前占有的xid*/
         u2x.remove(uid);
-        List<Long> list = wait.get(uid);
+        LongList list = wait.get(uid);
         if(list == null) return;
         assert list.size() > 0;
         while(list.size() > 0){
-            long xid = list.remove(0);
+            long xid = list.removeAt(0);
             if(!waitLock.containsKey(xid)){
                 continue;
             }
@@ -1,10 +1,9 @@
 package cuit.ljzhang.jydb.backend.vm;
 
+import cuit.ljzhang.jydb.backend.common.primitive.LongHashSet;
+import cuit.ljzhang.jydb.backend.common.primitive.LongObjectHashMap;
 import cuit.ljzhang.jydb.backend.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * @ClassName Transaction
  * @Description
@@ -25,22 +24,23 @@ public class Transaction {
     *       autoAborted：是否自动撤销回滚事务
     * */
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public LongHashSet snapshot;
     public Exception err;
     public boolean autoAborted;
+    /*提交时的持久化级别*/
+    public Durability durability;
 
     /*
     * 0号事务的等级为0 也就是超级事务
     * */
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, LongObjectHashMap<Transaction> active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            LongHashSet snapshot = new LongHashSet(active.size());
+            active.forEach((x, transaction) -> snapshot.add(x));
+            t.snapshot = snapshot;
         }
         return t;
     }
@@ -49,7 +49,7 @@ public class Transaction {
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        return snapshot.contains(xid);
     }
 
 }
@@ -9,11 +9,25 @@ public interface VersionManager {
     boolean delete(long xid, long uid) throws Exception;
 
     long begin(int level);
+    /*指定这个事务提交时的持久化级别  不指定时使用数据库的默认级别*/
+    long begin(int level, Durability durability);
     void commit(long xid) throws Exception;
     void abort(long xid);
+    /*
+    * 压缩事务状态表：最老的活跃事务之前的事务都已经结束
+    * 它们的状态不再变化，XID文件中只保留其中回滚的事务
+    * */
+    void freeze();
+    /*落盘还没有落盘的提交  停止后台提交线程  压缩事务状态表*/
+    void close();
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
 
+    /*durability:数据库默认的提交持久化级别*/
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, Durability durability) {
+        return new VersionManagerImpl(tm, dm, durability);
+    }
+
 }
@@ -1,13 +1,14 @@
 package cuit.ljzhang.jydb.backend.vm;
 
 import cuit.ljzhang.jydb.backend.common.AbstractCache;
+import cuit.ljzhang.jydb.backend.common.EvictionPolicy;
+import cuit.ljzhang.jydb.backend.common.primitive.LongObjectHashMap;
 import cuit.ljzhang.jydb.backend.dm.DataManager;
 import cuit.ljzhang.jydb.backend.tm.TransactionManager;
 import cuit.ljzhang.jydb.backend.tm.TransactionManagerImpl;
 import cuit.ljzhang.jydb.backend.utils.Panic;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -28,20 +29,32 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     /*底层的数据管理*/
     DataManager dm;
     /*活跃的事务*/
-    Map<Long, Transaction> activeTransaction;
+    LongObjectHashMap<Transaction> activeTransaction;
     Lock lock;
     /**/
     LockTable lt;
+    /*默认的提交持久化级别*/
+    Durability durability;
+    /*GROUP和ASYNC级别的提交由它落盘*/
+    GroupCommitter committer;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
+        this(tm, dm, Durability.SYNC);
+    }
+
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, Durability durability) {
+        super(0, defaultConcurrency(), EvictionPolicy::lru);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new LongObjectHashMap<>();
         /*Todo:为什么要把超级事务放进来*/
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.durability = durability;
+        this.committer = new GroupCommitter(tm, dm);
+        /*恢复之后没有活跃的事务  之前的事务状态都可以压缩*/
+        freeze();
     }
 
     /*
@@ -175,6 +188,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long begin(int level) {
+        return begin(level, durability);
+    }
+
+    @Override
+    public long begin(int level, Durability durability) {
         lock.lock();
         try {
             long xid = tm.begin();
@@ -183,6 +201,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                     level,
                     activeTransaction
             );
+            t.durability = durability;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -201,16 +220,30 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         } catch(NullPointerException n) {
             System.out.println(xid);
-            System.out.println(activeTransaction.keySet());
+            System.out.println(Arrays.toString(activeTransaction.keys()));
             Panic.panic(n);
         }
         lock.lock();
         activeTransaction.remove(xid);
         lock.unlock();
 
-        lt.remove(xid);
-        tm.commit(xid);
-
+        if(t.durability == Durability.SYNC) {
+            /*事务的日志先落盘  再标记为已提交  提交状态落盘之后日志才可以被回收*/
+            dm.flushLog(xid);
+            lt.remove(xid);
+            /*先落盘排在前面的GROUP和ASYNC提交*/
+            committer.persist();
+            tm.commit(xid);
+            dm.forgetLog(xid);
+        } else {
+            /*
+            * 先在内存中标记为已提交再释放锁  等待这个事务的锁的事务醒来时能看到它已提交
+            * 日志和提交状态由提交线程落盘
+            * */
+            tm.commitInMemory(xid);
+            lt.remove(xid);
+            committer.commit(xid, t.durability);
+        }
     }
 
     @Override
@@ -229,6 +262,37 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.autoAborted) return;
         lt.remove(xid);
         tm.abort(xid);
+        dm.forgetLog(xid);
+    }
+
+    /*
+    * horizon:最小的活跃事务
+    * 没有活跃事务时取下一个要分配的xid作为界限  在lock中读取，之后开启的事务都不比它小
+    * 只读计数器，不分配xid
+    * */
+    @Override
+    public void freeze() {
+        long horizon;
+        lock.lock();
+        try {
+            horizon = tm.nextXid();
+            for(long xid : activeTransaction.keys()) {
+                if(xid != TransactionManagerImpl.SUPER_XID) {
+                    horizon = Math.min(horizon, xid);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        /*horizon之前只在内存中提交的事务先落盘  否则压缩会停在它们前面*/
+        committer.persist();
+        tm.freeze(horizon);
+    }
+
+    @Override
+    public void close() {
+        committer.close();
+        freeze();
     }
 
 
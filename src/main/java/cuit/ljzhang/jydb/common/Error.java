@@ -15,6 +15,7 @@ public class Error {
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
+    public static final Exception FrozenXIDException = new RuntimeException("XID is already frozen!");
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");